@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Measures eval throughput when every thread has a LoxEngine of its own
+    and evaluates the same script over and over. Run it with a growing
+    number of threads to see how it scales; JMH reports the throughput of
+    all the threads together.
+
+    java -jar bench/target/benchmarks.jar EngineBenchmark -t 1
+    java -jar bench/target/benchmarks.jar EngineBenchmark -t 4 -p vm=true
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss512m")
+public class EngineBenchmark {
+    @Param({"fib"})
+    public String script;
+
+    // Runs the script on the bytecode VM instead of the tree-walker.
+    @Param({"false"})
+    public boolean vm;
+
+    private String source;
+    private LoxEngine engine;
+
+    @Setup
+    public void setup() throws IOException {
+        source = new String(PipelineBenchmark.corpus(script),
+                Charset.defaultCharset());
+        engine = new LoxEngine(
+                new PrintStream(OutputStream.nullOutputStream()),
+                System.err, vm);
+        if (engine.eval(source) != LoxEngine.Result.OK) {
+            throw new IllegalStateException("Script failed.");
+        }
+    }
+
+    @Benchmark
+    public LoxEngine.Result eval() {
+        return engine.eval(source);
+    }
+}
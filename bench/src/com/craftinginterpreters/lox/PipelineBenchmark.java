@@ -0,0 +1,185 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Measures each stage of the pipeline on the scripts in bench/corpus and
+    on a large generated source, which only makes sense for the front-end
+    stages. Run it with the GC profiler to see bytes allocated per
+    operation as well:
+
+    mvn -B package
+    java -jar bench/target/benchmarks.jar PipelineBenchmark -prof gc
+
+    A workload or a stage can be picked out, for instance the string
+    building that ropes speed up:
+
+    java -jar bench/target/benchmarks.jar "PipelineBenchmark.(interpret|vm)" \
+            -p workload=strings -prof gc
+
+    The tree-walker records what it learns while running in the tree:
+    operand types, call targets and the JIT's profiles and compiled code.
+    interpret runs a fresh tree each time, the way a script run from the
+    command line starts. interpretWarm runs one tree over and over, the
+    way an embedder evaluating the same script again does. vm always
+    starts cold, since the VM keeps nothing in the tree, but it gets a
+    fresh tree too so that it does the same work as interpret.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Deep recursion in the tree-walker needs far more than the default
+// thread stack.
+@Fork(value = 1, jvmArgsAppend = "-Xss512m")
+public class PipelineBenchmark {
+    private static final int GENERATED_FUNCTIONS = 20_000;
+
+    @Param({"closures", "fib", "loop", "recursion", "strings", "generated"})
+    public String workload;
+
+    private final ErrorReporter reporter = new ErrorReporter(System.err);
+    // Scripts may print; that isn't what's being measured.
+    private final PrintWriter nowhere = new PrintWriter(Writer.nullWriter());
+    private ByteBuffer source;
+    private List<Stmt> parsed;
+    private List<Stmt> statements;
+
+    // A tree nothing has run yet, built again before each call. Only the
+    // benchmarks that take it pay for that, outside the measured time.
+    @State(Scope.Thread)
+    public static class FreshTree {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void build(PipelineBenchmark pipeline) {
+            statements = new Optimizer().optimize(pipeline.resolved());
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] bytes = workload.equals("generated")
+                ? generate(GENERATED_FUNCTIONS).getBytes(Charset.defaultCharset())
+                : corpus(workload);
+        source = ByteBuffer.wrap(bytes);
+        parsed = resolved();
+        statements = new Optimizer().optimize(parsed);
+    }
+
+    private List<Stmt> resolved() {
+        List<Stmt> tree = new Parser(new Scanner(source, reporter)).parse();
+        new Resolver(reporter).resolve(tree);
+        if (reporter.hadError) {
+            throw new IllegalStateException(
+                    "Workload " + workload + " has errors.");
+        }
+        return tree;
+    }
+
+    // Reads a script from the corpus, which is packaged with the
+    // benchmarks.
+    static byte[] corpus(String name) throws IOException {
+        try (InputStream in = PipelineBenchmark.class
+                .getResourceAsStream("/corpus/" + name + ".lox")) {
+            if (in == null) {
+                throw new IllegalArgumentException(
+                        "No workload named " + name + ".");
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        Scanner scanner = new Scanner(source, reporter);
+        TokenBuffer tokens = scanner.tokens;
+        int count = 0;
+        do {
+            if (tokens.size() == tokens.capacity()) {
+                count += tokens.size();
+                tokens.discard(tokens.size());
+            }
+            scanner.scanNext();
+        } while (tokens.type(tokens.size() - 1) != TokenType.EOF);
+        return count + tokens.size();
+    }
+
+    // Tokens are scanned on demand, so this includes scanning.
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(new Scanner(source, reporter)).parse();
+    }
+
+    @Benchmark
+    public void resolve() {
+        new Resolver(reporter).resolve(parsed);
+    }
+
+    @Benchmark
+    public List<Stmt> optimize() {
+        return new Optimizer().optimize(parsed);
+    }
+
+    @Benchmark
+    public CompiledFunction compile() {
+        return new Compiler(new VM(reporter, nowhere)).compile(statements);
+    }
+
+    @Benchmark
+    public void interpret(FreshTree tree) {
+        new Interpreter(reporter, nowhere).interpret(tree.statements);
+    }
+
+    // The same tree every time, so it runs on what earlier runs learned.
+    @Benchmark
+    public void interpretWarm() {
+        new Interpreter(reporter, nowhere).interpret(statements);
+    }
+
+    @Benchmark
+    public void vm(FreshTree tree) {
+        VM vm = new VM(reporter, nowhere);
+        vm.interpret(new Compiler(vm).compile(tree.statements));
+    }
+
+    // A large, varied source used to measure front-end throughput.
+    private static String generate(int functions) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            source.append("fun f").append(i).append("(a, b) {\n")
+                  .append("  var x = a * ").append(i).append(" + b;\n")
+                  .append("  var label = \"f").append(i).append(": \";\n")
+                  .append("  if (x > 100 and b != nil) {\n")
+                  .append("    x = x - 100; // keep it small\n")
+                  .append("  } else {\n")
+                  .append("    x = x / 2;\n")
+                  .append("  }\n")
+                  .append("  while (x > 10) x = x - 3;\n")
+                  .append("  return label + (x >= 0 ? x : -x);\n")
+                  .append("}\n");
+        }
+        return source.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Measures how long a script takes to print a large number of integers
+    to a file. "flushed" flushes every line, the way print worked when it
+    went straight to System.out; "buffered" goes through the buffer the
+    engine puts in front of a PrintStream.
+
+    java -jar bench/target/benchmarks.jar PrintBenchmark
+    java -jar bench/target/benchmarks.jar PrintBenchmark -p lines=1000000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrintBenchmark {
+    @Param({"100000"})
+    public int lines;
+
+    @Param({"flushed", "buffered"})
+    public String output;
+
+    @Param({"false", "true"})
+    public boolean vm;
+
+    private final ErrorReporter reporter = new ErrorReporter(System.err);
+    private List<Stmt> statements;
+    private Path file;
+    private PrintStream stream;
+
+    @Setup
+    public void setup() throws IOException {
+        String script = "for (var i = 0; i < " + lines + "; i = i + 1) " +
+                "print i;";
+        statements = LoxEngine.frontEnd(ByteBuffer.wrap(
+                script.getBytes(Charset.defaultCharset())), reporter);
+        file = Files.createTempFile("jlox-print", ".out");
+    }
+
+    // Starts every run on an empty file, so the file doesn't keep growing.
+    @Setup(Level.Invocation)
+    public void open() throws IOException {
+        stream = new PrintStream(new FileOutputStream(file.toFile()), true);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        stream.close();
+    }
+
+    @TearDown
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void print() {
+        PrintWriter out = output.equals("flushed")
+                ? new PrintWriter(new OutputStreamWriter(stream,
+                        Charset.defaultCharset()), true)
+                : new PrintWriter(LoxEngine.buffered(stream));
+        if (vm) {
+            VM machine = new VM(reporter, out);
+            machine.interpret(new Compiler(machine).compile(statements));
+        } else {
+            new Interpreter(reporter, out).interpret(statements);
+        }
+    }
+}
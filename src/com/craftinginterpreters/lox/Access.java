@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// Where a variable lives at runtime, which the resolver works out for
+// every declaration and reference.
+enum Access {
+    // In the interpreter's table of globals. The slot caches where the
+    // last interpreter to run it found the name.
+    GLOBAL,
+    // In a slot of the frame of the function it is declared in.
+    LOCAL,
+    // In a cell in a slot of that frame, because a closure captures it.
+    CELL,
+    // In a cell the running closure captured, by its index among the
+    // closure's upvalues.
+    UPVALUE
+}
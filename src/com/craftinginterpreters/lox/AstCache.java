@@ -0,0 +1,653 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Stores the resolved and optimized tree of a script in a compact binary
+// file, so running an unchanged script again skips scanning, parsing and
+// resolving. The files live in the user's cache directory rather than next
+// to the scripts, which may be read-only or under version control. Each
+// file starts with a hash of the source it was made from and is ignored
+// when that doesn't match. The tree after it carries a checksum, so a
+// file that was cut short or damaged is ignored too, rather than read as
+// some other tree.
+class AstCache implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    // Bump whenever the encoding or the tree's resolved fields change.
+    private static final int VERSION = 4;
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final Access[] ACCESSES = Access.values();
+
+    private static final int NULL = 0;
+
+    private static final int BINARY = 1;
+    private static final int GROUPING = 2;
+    private static final int LITERAL = 3;
+    private static final int UNARY = 4;
+    private static final int VARIABLE = 5;
+    private static final int ASSIGN = 6;
+    private static final int LOGICAL = 7;
+    private static final int CALL = 8;
+    private static final int ANON_FUNC = 9;
+    private static final int LIST = 10;
+    private static final int TERNARY = 11;
+
+    private static final int EXPRESSION = 12;
+    private static final int PRINT = 13;
+    private static final int RETURN = 14;
+    private static final int VAR = 15;
+    private static final int BLOCK = 16;
+    private static final int IF = 17;
+    private static final int WHILE = 18;
+    private static final int BREAK = 19;
+    private static final int FUNCTION = 20;
+
+    private static final int NIL_VALUE = 0;
+    private static final int TRUE_VALUE = 1;
+    private static final int FALSE_VALUE = 2;
+    private static final int NUMBER_VALUE = 3;
+    private static final int STRING_VALUE = 4;
+
+    private final DataOutputStream out;
+    // Each distinct string is written once and referred to by index after.
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    private AstCache(DataOutputStream out) {
+        this.out = out;
+    }
+
+    // The directory is taken from the lox.cacheDir property, then from
+    // XDG_CACHE_HOME, then defaults to ~/.cache/jlox.
+    static Path directory() {
+        String dir = System.getProperty("lox.cacheDir");
+        if (dir != null) return Paths.get(dir);
+
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome != null && !cacheHome.isEmpty()) {
+            return Paths.get(cacheHome, "jlox");
+        }
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+    }
+
+    // Scripts are told apart by the hash of their absolute path.
+    static Path pathFor(Path script) {
+        String path = script.toAbsolutePath().normalize().toString();
+        byte[] hash = digest(ByteBuffer.wrap(
+                path.getBytes(StandardCharsets.UTF_8)));
+
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            name.append(String.format("%02x", hash[i]));
+        }
+        return directory().resolve(name + ".loxc");
+    }
+
+    static byte[] hash(ByteBuffer source) {
+        return digest(source.duplicate());
+    }
+
+    private static byte[] digest(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Returns the cached program, or null if there is no usable cache for
+    // a source with this hash.
+    static List<Stmt> load(Path cache, byte[] hash) {
+        if (!Files.isRegularFile(cache)) return null;
+
+        try (InputStream file = Files.newInputStream(cache)) {
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+            byte[] cachedHash = new byte[hash.length];
+            in.readFully(cachedHash);
+            if (!Arrays.equals(cachedHash, hash)) return null;
+
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > Files.size(cache)) return null;
+            byte[] tree = new byte[length];
+            in.readFully(tree);
+            if (in.read() != -1 || checksum(tree) != checksum) return null;
+
+            return new Reader(new DataInputStream(
+                    new ByteArrayInputStream(tree))).statements();
+        } catch (IOException | RuntimeException error) {
+            // A damaged cache is no worse than a missing one.
+            return null;
+        }
+    }
+
+    // Writing the cache is best effort. The file appears atomically, so a
+    // concurrent run never reads half of it.
+    static void store(Path cache, byte[] hash, List<Stmt> statements) {
+        Path temporary = null;
+        try {
+            ByteArrayOutputStream tree = new ByteArrayOutputStream();
+            DataOutputStream treeOut = new DataOutputStream(tree);
+            new AstCache(treeOut).writeStatements(statements);
+            treeOut.flush();
+            byte[] bytes = tree.toByteArray();
+
+            Files.createDirectories(cache.toAbsolutePath().getParent());
+            temporary = Files.createTempFile(cache.toAbsolutePath().getParent(),
+                    cache.getFileName().toString(), ".tmp");
+            try (OutputStream file = Files.newOutputStream(temporary)) {
+                DataOutputStream out =
+                        new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(hash);
+                out.writeInt(bytes.length);
+                out.writeInt(checksum(bytes));
+                out.write(bytes);
+                out.flush();
+            }
+            Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException error) {
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int)crc.getValue();
+    }
+
+    private void writeStatements(List<Stmt> statements) {
+        writeInt(statements.size());
+        for (Stmt statement : statements) write(statement);
+    }
+
+    private void writeExpressions(List<Expr> expressions) {
+        writeInt(expressions.size());
+        for (Expr expression : expressions) write(expression);
+    }
+
+    private void writeTokens(List<Token> tokens) {
+        writeInt(tokens.size());
+        for (Token token : tokens) write(token);
+    }
+
+    private void writeInts(int[] values) {
+        writeInt(values.length);
+        for (int value : values) writeInt(value);
+    }
+
+    private void writeAccess(Access access, int slot) {
+        writeInt(access.ordinal());
+        writeInt(slot + 1);
+    }
+
+    private void write(Stmt stmt) {
+        if (stmt == null) {
+            writeInt(NULL);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void write(Expr expr) {
+        if (expr == null) {
+            writeInt(NULL);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    private void write(Token token) {
+        writeInt(token.type.ordinal());
+        writeString(token.lexeme());
+        writeInt(token.line());
+    }
+
+    private void writeString(String string) {
+        Integer index = strings.get(string);
+        if (index != null) {
+            writeInt(index + 1);
+            return;
+        }
+
+        strings.put(string, strings.size());
+        writeInt(0);
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    // Small non-negative numbers are by far the most common, so ints are
+    // written seven bits at a time.
+    private void writeInt(int value) {
+        try {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        } catch (IOException error) {
+            throw new CacheError(error);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        try {
+            out.write(bytes);
+        } catch (IOException error) {
+            throw new CacheError(error);
+        }
+    }
+
+    private void writeDouble(double value) {
+        try {
+            out.writeDouble(value);
+        } catch (IOException error) {
+            throw new CacheError(error);
+        }
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        writeInt(BINARY);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        writeInt(GROUPING);
+        write(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        writeInt(LITERAL);
+        Object value = expr.value;
+        if (value == null) {
+            writeInt(NIL_VALUE);
+        } else if (value instanceof Boolean) {
+            writeInt((boolean)value ? TRUE_VALUE : FALSE_VALUE);
+        } else if (value instanceof Double) {
+            writeInt(NUMBER_VALUE);
+            writeDouble((double)value);
+        } else {
+            writeInt(STRING_VALUE);
+            writeString((String)value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        writeInt(UNARY);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        writeInt(VARIABLE);
+        write(expr.name);
+        writeAccess(expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        writeInt(ASSIGN);
+        write(expr.name);
+        write(expr.value);
+        writeAccess(expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        writeInt(LOGICAL);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        writeInt(CALL);
+        write(expr.callee);
+        write(expr.paren);
+        writeExpressions(expr.arguments);
+        return null;
+    }
+
+    @Override
+    public Void visitAnonFuncExpr(Expr.AnonFunc expr) {
+        writeInt(ANON_FUNC);
+        writeTokens(expr.params);
+        writeStatements(expr.body);
+        writeInt(expr.slotCount);
+        writeInts(expr.upvalues);
+        writeInts(expr.capturedParams);
+        return null;
+    }
+
+    @Override
+    public Void visitListExpr(Expr.List expr) {
+        writeInt(LIST);
+        writeExpressions(expr.exprs);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        writeInt(TERNARY);
+        write(expr._if);
+        write(expr._then);
+        write(expr._else);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        writeInt(EXPRESSION);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        writeInt(PRINT);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        writeInt(RETURN);
+        write(stmt.keyword);
+        write(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        writeInt(VAR);
+        write(stmt.name);
+        write(stmt.initializer);
+        writeAccess(stmt.access, stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        writeInt(BLOCK);
+        writeStatements(stmt.statements);
+        writeInt(stmt.frameSize);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        writeInt(IF);
+        write(stmt._if);
+        write(stmt._then);
+        write(stmt._else);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        writeInt(WHILE);
+        write(stmt.condition);
+        write(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        writeInt(BREAK);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        writeInt(FUNCTION);
+        write(stmt.name);
+        writeTokens(stmt.params);
+        writeStatements(stmt.body);
+        writeAccess(stmt.access, stmt.slot);
+        writeInt(stmt.slotCount);
+        writeInts(stmt.upvalues);
+        writeInts(stmt.capturedParams);
+        return null;
+    }
+
+    // Lets an IOException out of the visitor methods, which can't throw it.
+    private static class CacheError extends RuntimeException {
+        CacheError(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = readInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(statement());
+            return statements;
+        }
+
+        private List<Expr> expressions() throws IOException {
+            int count = readInt();
+            List<Expr> expressions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) expressions.add(expression());
+            return expressions;
+        }
+
+        private List<Token> tokens() throws IOException {
+            int count = readInt();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) tokens.add(token());
+            return tokens;
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TYPES[readInt()];
+            String lexeme = string();
+            return new Token(type, lexeme, null, readInt());
+        }
+
+        private Stmt statement() throws IOException {
+            int tag = readInt();
+            switch (tag) {
+                case NULL: return null;
+                case EXPRESSION: return new Stmt.Expression(expression());
+                case PRINT: return new Stmt.Print(expression());
+                case RETURN: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expression());
+                }
+                case VAR: {
+                    Token name = token();
+                    Stmt.Var var = new Stmt.Var(name, expression());
+                    var.access = access();
+                    var.slot = readInt() - 1;
+                    return var;
+                }
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.frameSize = readInt();
+                    return block;
+                }
+                case IF: {
+                    Expr condition = expression();
+                    Stmt thenBranch = statement();
+                    return new Stmt.If(condition, thenBranch, statement());
+                }
+                case WHILE: {
+                    Expr condition = expression();
+                    return new Stmt.While(condition, statement());
+                }
+                case BREAK: return new Stmt.Break();
+                case FUNCTION: {
+                    Token name = token();
+                    List<Token> params = tokens();
+                    Stmt.Function function =
+                            new Stmt.Function(name, params, statements());
+                    function.access = access();
+                    function.slot = readInt() - 1;
+                    function.slotCount = readInt();
+                    function.upvalues = ints();
+                    function.capturedParams = ints();
+                    return function;
+                }
+            }
+
+            throw new IOException("Unknown statement tag " + tag + ".");
+        }
+
+        private Expr expression() throws IOException {
+            int tag = readInt();
+            switch (tag) {
+                case NULL: return null;
+                case BINARY: {
+                    Expr left = expression();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expression());
+                }
+                case GROUPING: return new Expr.Grouping(expression());
+                case LITERAL: return new Expr.Literal(value());
+                case UNARY: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expression());
+                }
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(token());
+                    variable.access = access();
+                    variable.slot = readInt() - 1;
+                    return variable;
+                }
+                case ASSIGN: {
+                    Token name = token();
+                    Expr.Assign assign = new Expr.Assign(name, expression());
+                    assign.access = access();
+                    assign.slot = readInt() - 1;
+                    return assign;
+                }
+                case LOGICAL: {
+                    Expr left = expression();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expression());
+                }
+                case CALL: {
+                    Expr callee = expression();
+                    Token paren = token();
+                    return new Expr.Call(callee, paren, expressions());
+                }
+                case ANON_FUNC: {
+                    List<Token> params = tokens();
+                    Expr.AnonFunc function =
+                            new Expr.AnonFunc(params, statements());
+                    function.slotCount = readInt();
+                    function.upvalues = ints();
+                    function.capturedParams = ints();
+                    return function;
+                }
+                case LIST: return new Expr.List(expressions());
+                case TERNARY: {
+                    Expr condition = expression();
+                    Expr thenBranch = expression();
+                    return new Expr.Ternary(condition, thenBranch,
+                            expression());
+                }
+            }
+
+            throw new IOException("Unknown expression tag " + tag + ".");
+        }
+
+        private Object value() throws IOException {
+            int kind = readInt();
+            switch (kind) {
+                case NIL_VALUE: return null;
+                case TRUE_VALUE: return true;
+                case FALSE_VALUE: return false;
+                case NUMBER_VALUE: return in.readDouble();
+                case STRING_VALUE: return string();
+            }
+
+            throw new IOException("Unknown literal kind " + kind + ".");
+        }
+
+        private String string() throws IOException {
+            int index = readInt();
+            if (index > 0) return strings.get(index - 1);
+
+            byte[] bytes = new byte[readInt()];
+            in.readFully(bytes);
+            String string = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+
+        private Access access() throws IOException {
+            return ACCESSES[readInt()];
+        }
+
+        private int[] ints() throws IOException {
+            int[] values = new int[readInt()];
+            for (int i = 0; i < values.length; i++) values[i] = readInt();
+            return values;
+        }
+
+        private int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+    }
+}
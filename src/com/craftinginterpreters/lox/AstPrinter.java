@@ -8,7 +8,7 @@ public class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme,
+        return parenthesize(expr.operator.lexeme(),
                 expr.left, expr.right);
     }
 
@@ -25,7 +25,7 @@ public class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.right);
     }
 
     @Override
@@ -40,7 +40,7 @@ public class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return parenthesize(expr.name.lexeme);
+        return parenthesize(expr.name.lexeme());
     }
 
     private String parenthesize(String name, Expr... exprs) {
@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// Holds a local variable that closures capture, so the frame it was
+// declared in and every closure over it share the one variable.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+    // Names and small numbers repeat a lot, so identical constants share
+    // a single pool entry.
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    // Four ints for each loop: where its body starts and ends, where a
+    // break out of it lands, and the stack height of the frame there.
+    // Inner loops come before the loops around them.
+    int[] loops = new int[0];
+    int loopCount = 0;
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    void addLoop(int bodyStart, int bodyEnd, int exit, int height) {
+        if (loopCount * 4 == loops.length) {
+            loops = Arrays.copyOf(loops, Math.max(loops.length * 2, 16));
+        }
+        int i = loopCount++ * 4;
+        loops[i] = bodyStart;
+        loops[i + 1] = bodyEnd;
+        loops[i + 2] = exit;
+        loops[i + 3] = height;
+    }
+
+    // Returns the index in "loops" of the innermost loop whose body holds
+    // the instruction at ip, or -1 if there is none.
+    int loopAt(int ip) {
+        for (int i = 0; i < loopCount * 4; i += 4) {
+            if (loops[i] <= ip && ip < loops[i + 1]) return i;
+        }
+        return -1;
+    }
+
+    int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index != null) return index;
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+}
@@ -0,0 +1,341 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes just as much of the JVM class file format as JitCompiler needs:
+// a class with a constant pool and methods made of bytecode. It targets
+// class file version 49, the last one the verifier accepts without stack
+// map frames, so jumps only need their offsets patched.
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DSTORE = 0x39;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int LCMP = 0x94;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int DRETURN = 0xaf;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassWriter(int access, String name, String superName) {
+        this.access = access;
+        this.thisClass = classConstant(name);
+        this.superClass = classConstant(superName);
+    }
+
+    // Starts a method. Its parameters take up the first argumentSlots
+    // locals, counting the receiver and two for each double.
+    Code method(int access, String name, String descriptor,
+                int argumentSlots) {
+        Code code = new Code(access, utf8(name), utf8(descriptor),
+                argumentSlots);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int codeName = utf8("Code");
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (Code method : methods) method.writeTo(out, codeName);
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String value) {
+        return constant("U" + value, CONSTANT_UTF8, 1,
+                out -> out.writeUTF(value));
+    }
+
+    private int classConstant(String name) {
+        int nameIndex = utf8(name);
+        return constant("C" + name, CONSTANT_CLASS, 1,
+                out -> out.writeShort(nameIndex));
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+        int ownerIndex = classConstant(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + " " + descriptor,
+                CONSTANT_NAME_AND_TYPE, 1, out -> {
+                    out.writeShort(nameIndex);
+                    out.writeShort(descriptorIndex);
+                });
+        return constant("M" + owner + " " + name + " " + descriptor,
+                CONSTANT_METHODREF, 1, out -> {
+                    out.writeShort(ownerIndex);
+                    out.writeShort(nameAndType);
+                });
+    }
+
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        // Takes up two entries in the pool.
+        return constant("D" + bits, CONSTANT_DOUBLE, 2,
+                out -> out.writeLong(bits));
+    }
+
+    private interface Entry {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, int size, Entry entry) {
+        Integer existing = poolIndexes.get(key);
+        if (existing != null) return existing;
+
+        int index = poolCount;
+        try {
+            poolOut.writeByte(tag);
+            entry.writeTo(poolOut);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        poolCount += size;
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    private static final class Handler {
+        final Label start;
+        final Label end;
+        final Label handler;
+
+        Handler(Label start, Label end, Label handler) {
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+        }
+    }
+
+    // A place in a method's code that jumps go to. Jumps that come before
+    // it are patched once it is marked.
+    static final class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    // The bytecode of one method. It keeps track of how deep the operand
+    // stack is after each instruction, so callers give the stack change
+    // of any instruction they emit directly.
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        // False after an instruction that never falls through, until the
+        // next label.
+        private boolean reachable = true;
+        private final List<Handler> handlers = new ArrayList<>();
+
+        private Code(int access, int name, int descriptor,
+                     int argumentSlots) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = argumentSlots;
+        }
+
+        int size() {
+            return length;
+        }
+
+        void op(int opcode, int stackChange) {
+            write(opcode);
+            adjust(stackChange);
+            if (opcode == DRETURN || opcode == RETURN || opcode == ATHROW) {
+                reachable = false;
+            }
+        }
+
+        // DLOAD, DSTORE, ALOAD or ILOAD.
+        void local(int opcode, int index) {
+            boolean wide = opcode == DLOAD || opcode == DSTORE;
+            if (index > 255) write(0xc4);
+            write(opcode);
+            if (index > 255) writeShort(index);
+            else write(index);
+
+            int size = wide ? 2 : 1;
+            adjust(opcode == DSTORE ? -size : size);
+            maxLocals = Math.max(maxLocals, index + size);
+        }
+
+        void pushInt(int value) {
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                write(BIPUSH);
+                write(value);
+            } else {
+                write(SIPUSH);
+                writeShort(value);
+            }
+            adjust(1);
+        }
+
+        void pushDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0) {
+                op(DCONST_0, 2);
+            } else if (value == 1.0) {
+                op(DCONST_1, 2);
+            } else {
+                write(LDC2_W);
+                writeShort(doubleConstant(value));
+                adjust(2);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor,
+                    int stackChange) {
+            write(opcode);
+            writeShort(methodConstant(owner, name, descriptor));
+            adjust(stackChange);
+        }
+
+        // The stack change is that of the jump itself, which pops the
+        // operands of a conditional jump.
+        void jump(int opcode, Label label, int stackChange) {
+            adjust(stackChange);
+            int position = length;
+            write(opcode);
+            if (label.position >= 0) {
+                writeShort(label.position - position);
+            } else {
+                label.jumps.add(position);
+                writeShort(0);
+                label.stack = stack;
+            }
+            if (opcode == GOTO) reachable = false;
+        }
+
+        void mark(Label label) {
+            label.position = length;
+            if (!reachable && label.stack >= 0) stack = label.stack;
+            reachable = true;
+
+            for (int jump : label.jumps) {
+                int offset = label.position - jump;
+                bytes[jump + 1] = (byte)(offset >> 8);
+                bytes[jump + 2] = (byte)offset;
+            }
+        }
+
+        // Catches any exception thrown by the code from start up to end.
+        // The handler starts with the exception on the stack.
+        void handler(Label start, Label end, Label handler) {
+            handler.stack = 1;
+            handlers.add(new Handler(start, end, handler));
+        }
+
+        private void adjust(int stackChange) {
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void write(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte)value;
+        }
+
+        private void writeShort(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        private void writeTo(DataOutputStream out, int codeName)
+                throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length + 8 * handlers.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+            out.writeShort(handlers.size());
+            for (Handler handler : handlers) {
+                out.writeShort(handler.start.position);
+                out.writeShort(handler.end.position);
+                out.writeShort(handler.handler.position);
+                out.writeShort(0);
+            }
+            out.writeShort(0);
+        }
+    }
+}
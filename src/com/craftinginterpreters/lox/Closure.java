@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+class Closure {
+    final CompiledFunction function;
+    final Upvalue[] upvalues;
+
+    Closure(CompiledFunction function) {
+        this.function = function;
+        this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+class CompiledFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    int maxStack = 0;
+
+    CompiledFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<anonymous fn>";
+        return "<fn " + name + ">";
+    }
+}
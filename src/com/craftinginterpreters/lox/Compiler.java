@@ -0,0 +1,516 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Lowers a resolved syntax tree into bytecode for the VM. Each function
+// body gets its own Compiler, chained through "enclosing" so that free
+// variables can be turned into upvalues.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_OPERAND = 0xffff;
+
+    private static class Local {
+        final Symbol name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(Symbol name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class CompilerUpvalue {
+        final int index;
+        final boolean isLocal;
+
+        CompilerUpvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(int scopeDepth) {
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private final Compiler enclosing;
+    private final VM vm;
+    private final CompiledFunction function;
+    private final List<Local> locals = new ArrayList<>();
+    private final List<CompilerUpvalue> upvalues = new ArrayList<>();
+    private Loop loop = null;
+    private int scopeDepth = 0;
+    private int stackDepth = 0;
+    private int line = 0;
+
+    Compiler(VM vm) {
+        this(null, vm, new CompiledFunction("script", 0));
+    }
+
+    private Compiler(Compiler enclosing, VM vm, CompiledFunction function) {
+        this.enclosing = enclosing;
+        this.vm = vm;
+        this.function = function;
+
+        // Slot zero holds the function being called and has no name.
+        locals.add(new Local(null, 0));
+        stackDepth = 1;
+        function.maxStack = 1;
+    }
+
+    CompiledFunction compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emit(NIL);
+        emit(RETURN);
+        return function;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line();
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(NIL);
+        }
+        emit(RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line();
+        if (scopeDepth > 0) {
+            // The initializer's value is left on the stack and becomes the
+            // local's slot.
+            addLocal(stmt.name);
+        }
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL);
+        }
+
+        if (scopeDepth == 0) {
+            emit(DEFINE_GLOBAL, vm.globalSlot(stmt.name.symbol));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt._if);
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        int conditionDepth = stackDepth;
+        emit(POP);
+        compile(stmt._then);
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        // The else branch starts with the condition still on the stack.
+        stackDepth = conditionDepth;
+        emit(POP);
+        if (stmt._else != null) compile(stmt._else);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop enclosingLoop = loop;
+        loop = new Loop(scopeDepth);
+
+        int height = stackDepth;
+        int loopStart = function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        int conditionDepth = stackDepth;
+        emit(POP);
+        int bodyStart = function.chunk.count;
+        compile(stmt.body);
+        int bodyEnd = function.chunk.count;
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        stackDepth = conditionDepth;
+        emit(POP);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        // A function called from the body may break out of the loop too.
+        function.chunk.addLoop(bodyStart, bodyEnd, function.chunk.count,
+                height);
+
+        loop = enclosingLoop;
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        // The parser only requires a break to be inside some loop, which
+        // can enclose the function rather than be inside it. Such a break
+        // exits the loop that is running the call, as in the tree-walker.
+        if (loop == null) {
+            emit(BREAK);
+            return null;
+        }
+
+        // Discard the locals declared inside the loop without forgetting
+        // them, since the code after the break is still in their scope.
+        int depth = stackDepth;
+        for (int i = locals.size() - 1;
+             i >= 0 && locals.get(i).depth > loop.scopeDepth; i--) {
+            emit(locals.get(i).isCaptured ? CLOSE_UPVALUE : POP);
+        }
+        loop.breakJumps.add(emitJump(JUMP));
+        stackDepth = depth;
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line();
+        if (scopeDepth > 0) {
+            // Declared before the body so the function can refer to itself.
+            addLocal(stmt.name);
+        }
+
+        function(stmt.name.lexeme(), stmt.params, stmt.body);
+
+        if (scopeDepth == 0) {
+            emit(DEFINE_GLOBAL, vm.globalSlot(stmt.name.symbol));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line();
+        emitVariable(expr.name, SET_LOCAL, SET_UPVALUE, SET_GLOBAL);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line();
+        switch (expr.operator.type) {
+            case BANG_EQUAL:    emit(NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emit(EQUAL); break;
+            case GREATER:       emit(GREATER); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+            case LESS:          emit(LESS); break;
+            case LESS_EQUAL:    emit(LESS_EQUAL); break;
+            case MINUS:         emit(SUBTRACT); break;
+            case PLUS:          emit(ADD); break;
+            case SLASH:         emit(DIVIDE); break;
+            case STAR:          emit(MULTIPLY); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line();
+        emit(CALL);
+        emitByte(expr.arguments.size());
+        stackDepth -= expr.arguments.size();
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL);
+        } else if (expr.value == Boolean.TRUE) {
+            emit(TRUE);
+        } else if (expr.value == Boolean.FALSE) {
+            emit(FALSE);
+        } else {
+            emit(CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            int endJump = emitJump(JUMP);
+            patchJump(elseJump);
+            emit(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(JUMP_IF_FALSE);
+            emit(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line();
+        switch (expr.operator.type) {
+            case MINUS: emit(NEGATE); break;
+            case BANG:  emit(NOT); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line();
+        emitVariable(expr.name, GET_LOCAL, GET_UPVALUE, GET_GLOBAL);
+        return null;
+    }
+
+    @Override
+    public Void visitAnonFuncExpr(Expr.AnonFunc expr) {
+        function(null, expr.params, expr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitListExpr(Expr.List expr) {
+        for (int i = 0; i < expr.exprs.size(); i++) {
+            if (i > 0) emit(POP);
+            compile(expr.exprs.get(i));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr._if);
+        int elseJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+        compile(expr._then);
+
+        int endJump = emitJump(JUMP);
+        patchJump(elseJump);
+        emit(POP);
+        compile(expr._else);
+        patchJump(endJump);
+        return null;
+    }
+
+    private void function(String name, List<Token> params, List<Stmt> body) {
+        Compiler compiler = new Compiler(this, vm,
+                new CompiledFunction(name, params.size()));
+        compiler.line = line;
+        // Parameters and the body share the function's outermost scope.
+        compiler.beginScope();
+        for (Token param : params) {
+            compiler.addLocal(param);
+        }
+        compiler.stackDepth += params.size();
+        compiler.function.maxStack = compiler.stackDepth;
+
+        CompiledFunction compiled = compiler.compile(body);
+        compiled.upvalueCount = compiler.upvalues.size();
+
+        emit(CLOSURE, makeConstant(compiled));
+        for (CompilerUpvalue upvalue : compiler.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitShort(upvalue.index);
+        }
+    }
+
+    private void emitVariable(Token name, byte localOp, byte upvalueOp,
+                              byte globalOp) {
+        int slot = resolveLocal(name.symbol);
+        if (slot != -1) {
+            emit(localOp, slot);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(name.symbol);
+        if (upvalue != -1) {
+            emit(upvalueOp, upvalue);
+            return;
+        }
+
+        emit(globalOp, vm.globalSlot(name.symbol));
+    }
+
+    private int resolveLocal(Symbol name) {
+        for (int i = locals.size() - 1; i >= 0; i--) {
+            if (locals.get(i).name == name) return i;
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(Symbol name) {
+        if (enclosing == null) return -1;
+
+        int local = enclosing.resolveLocal(name);
+        if (local != -1) {
+            enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(local, true);
+        }
+
+        int upvalue = enclosing.resolveUpvalue(name);
+        if (upvalue != -1) {
+            return addUpvalue(upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(int index, boolean isLocal) {
+        for (int i = 0; i < upvalues.size(); i++) {
+            CompilerUpvalue upvalue = upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        upvalues.add(new CompilerUpvalue(index, isLocal));
+        return upvalues.size() - 1;
+    }
+
+    private void addLocal(Token name) {
+        if (locals.size() > MAX_OPERAND) {
+            vm.reporter.error(name, "Too many local variables in function.");
+            return;
+        }
+        locals.add(new Local(name.symbol, scopeDepth));
+    }
+
+    private void beginScope() {
+        scopeDepth++;
+    }
+
+    private void endScope() {
+        scopeDepth--;
+
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > scopeDepth) {
+            emit(locals.get(locals.size() - 1).isCaptured
+                    ? CLOSE_UPVALUE : POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private int makeConstant(Object value) {
+        int index = function.chunk.addConstant(value);
+        if (index > MAX_OPERAND) {
+            vm.reporter.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void emit(byte op) {
+        emitByte(op);
+        stackDepth += STACK_EFFECT[op];
+        if (stackDepth > function.maxStack) function.maxStack = stackDepth;
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        emitShort(operand);
+    }
+
+    private void emitByte(int b) {
+        function.chunk.write(b, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emitShort(0xffff);
+        return function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself.
+        int jump = function.chunk.count - offset - 2;
+        if (jump > MAX_OPERAND) {
+            vm.reporter.error(line, "Too much code to jump over.");
+        }
+
+        function.chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        function.chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(LOOP);
+
+        int offset = function.chunk.count - loopStart + 2;
+        if (offset > MAX_OPERAND) {
+            vm.reporter.error(line, "Loop body too large.");
+        }
+
+        emitShort(offset);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+}
@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// How a statement finished executing. Break and return are reported back
+// up through the statement visitor instead of being thrown; a RETURN
+// leaves its value with the Interpreter, and a TAIL_CALL leaves the
+// function to run in place of the one returning.
+enum Completion {
+    NORMAL,
+    BREAK,
+    RETURN,
+    TAIL_CALL
+}
@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by compiled code when an assumption it was compiled under no
+// longer holds, such as a global turning out not to be a number. Compiled
+// code has no side effects, so the call that entered it is simply run
+// again by the tree-walker.
+class Deoptimization extends RuntimeException {
+    // The function whose code has to be thrown away.
+    final JitProfile profile;
+
+    Deoptimization(JitProfile profile) {
+        super(null, null, false, false);
+        this.profile = profile;
+    }
+}
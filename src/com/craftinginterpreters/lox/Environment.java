@@ -1,62 +1,165 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private static final int INITIAL_SLOTS = 8;
+    // Marks a slot whose value is a number kept unboxed in "numbers".
+    private static final Object UNBOXED = new Object();
+    // Marks a global that hasn't been defined.
+    private static final Object UNDEFINED = new Object();
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    // Globals are late-bound. Each interpreter numbers the names it meets
+    // densely, the way the VM does, and a global lives at its number in a
+    // table that grows as names are added. References remember the number,
+    // so looking one up again hashes nothing.
+    // Everything else is a frame: one per call, with a slot for each local
+    // of the function, however deeply nested the block declaring it. Locals
+    // a closure captures sit in cells, so frames never need to chain to
+    // each other.
+    private final Map<Symbol, Integer> indices;
+    private Symbol[] names;
+    private Object[] values;
+    private Object[] slots;
+    private double[] numbers = null;
+    // The cells the running closure captured.
+    final Cell[] upvalues;
+    // How deep compiled code running with these globals has called.
+    int depth = 0;
 
     Environment() {
-        this.enclosing = null;
+        this.indices = new HashMap<>();
+        this.names = new Symbol[INITIAL_SLOTS];
+        this.values = new Object[INITIAL_SLOTS];
+        Arrays.fill(values, UNDEFINED);
+        this.slots = null;
+        this.upvalues = NO_UPVALUES;
+    }
+
+    // The frame for top-level code, which grows as blocks need it to.
+    static Environment topLevel() {
+        return new Environment(INITIAL_SLOTS, NO_UPVALUES);
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(int size, Cell[] upvalues) {
+        this.indices = null;
+        this.names = null;
+        this.values = null;
+        this.slots = new Object[Math.max(size, 1)];
+        this.upvalues = upvalues;
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    // Returns the number of a global, given the one a reference last saw.
+    // The same tree may run under more than one interpreter, so the hint
+    // is only trusted if it names the same global here.
+    int global(Symbol name, int hint) {
+        if (hint >= 0 && hint < indices.size() && names[hint] == name) {
+            return hint;
+        }
+
+        Integer number = indices.get(name);
+        if (number != null) return number;
+
+        number = indices.size();
+        if (number == values.length) {
+            names = Arrays.copyOf(names, number * 2);
+            values = Arrays.copyOf(values, number * 2);
+            Arrays.fill(values, number, values.length, UNDEFINED);
         }
+        names[number] = name;
+        indices.put(name, number);
+        return number;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    Object get(Token name, int global) {
+        Object value = values[global];
+        if (value != UNDEFINED) return value;
 
         throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+                "Undefined variable '" + name.lexeme() + "'.");
+    }
+
+    // Returns null if the global isn't defined.
+    Object lookup(Symbol name) {
+        Integer number = indices.get(name);
+        if (number == null) return null;
+        Object value = values[number];
+        return value == UNDEFINED ? null : value;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object lookup(int global) {
+        Object value = values[global];
+        return value == UNDEFINED ? null : value;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    void define(Symbol name, Object value) {
+        define(global(name, -1), value);
     }
 
-    void assign(Token name, Object value) {
-        if (!values.containsKey(name.lexeme)) {
-            if (enclosing != null) {
-                enclosing.assign(name, value);
-                return;
-            }
+    void define(int global, Object value) {
+        values[global] = value;
+    }
+
+    void assign(Token name, int global, Object value) {
+        if (values[global] == UNDEFINED) {
             throw new RuntimeError(name,
-                    "Assigning to undefined variable '" + name.lexeme + "'.");
+                    "Assigning to undefined variable '" + name.lexeme() + "'.");
+        }
+
+        values[global] = value;
+    }
+
+    Object get(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) {
+            // Box once and keep the box, so repeated reads don't allocate.
+            value = numbers[slot];
+            slots[slot] = value;
         }
+        return value;
+    }
+
+    boolean isUnboxed(int slot) {
+        return slots[slot] == UNBOXED;
+    }
 
-        values.put(name.lexeme, value);
+    double getNumber(int slot) {
+        return numbers[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Cell cell(int slot) {
+        return (Cell)slots[slot];
     }
 
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    void set(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    void setNumber(int slot, double value) {
+        slots[slot] = UNBOXED;
+        if (numbers == null || numbers.length < slots.length) {
+            numbers = numbers == null
+                    ? new double[slots.length]
+                    : Arrays.copyOf(numbers, slots.length);
+        }
+        numbers[slot] = value;
+    }
+
+    // Moves the values in the slots into cells of their own, for the
+    // parameters a closure captures.
+    void capture(int[] slots) {
+        for (int slot : slots) {
+            set(slot, new Cell(get(slot)));
         }
+    }
 
-        return environment;
+    // Function frames are sized by the resolver. Only the top-level frame
+    // grows, when a block about to run needs more slots.
+    void reserve(int size) {
+        if (size <= slots.length) return;
+        slots = Arrays.copyOf(slots, Math.max(slots.length * 2, size));
     }
 }
@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// Where the errors of one script go. Every stage reports to the reporter
+// it was given rather than to global state, so separate scripts can be
+// scanned, parsed and run on separate threads.
+class ErrorReporter {
+    private final PrintStream err;
+    // Names the script in each message when several are checked together.
+    private final String file;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    ErrorReporter(PrintStream err) {
+        this(err, null);
+    }
+
+    ErrorReporter(PrintStream err, String file) {
+        this.err = err;
+        this.file = file;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line(), " at end", message);
+        } else {
+            report(token.line(), " at '" + token.lexeme() + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        err.println("[" + location(line) + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        err.println(error.getMessage() + "\n[" + location(error.line) + "]");
+        hadRuntimeError = true;
+    }
+
+    private String location(int line) {
+        if (file == null) return "line " + line;
+        return file + " line " + line;
+    }
+}
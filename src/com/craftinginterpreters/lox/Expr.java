@@ -31,6 +31,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -69,6 +71,8 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
   static class Variable extends Expr {
     Variable(Token name) {
@@ -81,6 +85,9 @@ abstract class Expr {
     }
 
     final Token name;
+
+    Access access = Access.GLOBAL;
+    int slot = -1;
   }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
@@ -95,6 +102,9 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    Access access = Access.GLOBAL;
+    int slot = -1;
   }
   static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
@@ -127,6 +137,8 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final java.util.List<Expr> arguments;
+
+    Stmt.Function cachedTarget = null;
   }
   static class AnonFunc extends Expr {
     AnonFunc(java.util.List<Token> params, java.util.List<Stmt> body) {
@@ -141,6 +153,11 @@ abstract class Expr {
 
     final java.util.List<Token> params;
     final java.util.List<Stmt> body;
+
+    int slotCount = 0;
+    int[] upvalues = {};
+    int[] capturedParams = {};
+    JitProfile profile = new JitProfile();
   }
   static class List extends Expr {
     List(java.util.List<Expr> exprs) {
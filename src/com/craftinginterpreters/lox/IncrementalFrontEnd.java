@@ -0,0 +1,315 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps the parsed and resolved form of a script between versions of it.
+// An update scans, parses and resolves again only the top-level
+// declarations around the edit and reuses the others. Globals are
+// late-bound, so each top-level declaration resolves on its own.
+//
+// A reused declaration has to look freshly parsed. Its tokens copy their
+// lexemes out when they are made, so they never keep an old version of
+// the source alive. What earlier runs recorded in its nodes, like operand
+// types, call targets and the JIT's profiles, is reset on every update,
+// so each run starts cold just as a full parse would.
+class IncrementalFrontEnd {
+    private static class Declaration {
+        // Where the declaration is in the current version of the source.
+        int start;
+        int end;
+        int endLine;
+        final Token.LineShift shift;
+        List<Stmt> statements;
+
+        Declaration(int start, int end, int endLine, Token.LineShift shift,
+                    List<Stmt> statements) {
+            this.start = start;
+            this.end = end;
+            this.endLine = endLine;
+            this.shift = shift;
+            this.statements = statements;
+        }
+    }
+
+    private final ErrorReporter reporter;
+    private byte[] source = new byte[0];
+    private List<Declaration> declarations = new ArrayList<>();
+
+    IncrementalFrontEnd(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    // Returns the program for the new version of the source, or null if it
+    // has errors. Errors are reported as a full parse would report them.
+    List<Stmt> update(byte[] text) {
+        int shorter = Math.min(source.length, text.length);
+        int prefix = 0;
+        while (prefix < shorter && source[prefix] == text[prefix]) prefix++;
+        int suffix = 0;
+        while (suffix < shorter - prefix &&
+                source[source.length - 1 - suffix] ==
+                        text[text.length - 1 - suffix]) {
+            suffix++;
+        }
+
+        int delta = text.length - source.length;
+        int lineDelta = countLines(text, prefix, text.length - suffix) -
+                countLines(source, prefix, source.length - suffix);
+
+        // How a declaration parses can depend on the token after it, like
+        // an "if" followed by "else", so one is only kept if the next
+        // declaration also ends before the edit.
+        int kept = 0;
+        while (kept + 1 < declarations.size() &&
+                declarations.get(kept + 1).end < prefix) {
+            kept++;
+        }
+
+        List<Declaration> updated =
+                new ArrayList<>(declarations.subList(0, kept));
+        List<Declaration> parsed = new ArrayList<>();
+        int offset = kept > 0 ? declarations.get(kept - 1).end : 0;
+        int line = kept > 0 ? declarations.get(kept - 1).endLine : 1;
+        Parser parser = new Parser(
+                new Scanner(ByteBuffer.wrap(text), offset, line, reporter));
+
+        // Parse until a declaration starts exactly where one in the
+        // unchanged tail of the old source did. From there on the old
+        // declarations are still good.
+        int unchanged = source.length - suffix;
+        int next = kept;
+        boolean resynced = false;
+        while (!parser.isAtEnd()) {
+            int start = parser.nextStart();
+            while (next < declarations.size() &&
+                    (declarations.get(next).start < unchanged ||
+                     declarations.get(next).start + delta < start)) {
+                next++;
+            }
+            if (!reporter.hadError && next < declarations.size() &&
+                    declarations.get(next).start + delta == start) {
+                resynced = true;
+                break;
+            }
+
+            Token.LineShift shift = new Token.LineShift();
+            parser.shiftLines(shift);
+            List<Stmt> statements = new ArrayList<>();
+            statements.add(parser.declaration());
+            Declaration declaration = new Declaration(start,
+                    parser.previousEnd(), parser.previousLine(), shift,
+                    statements);
+            updated.add(declaration);
+            parsed.add(declaration);
+        }
+
+        if (!reporter.hadError) {
+            Resolver resolver = new Resolver(reporter);
+            for (Declaration declaration : parsed) {
+                resolver.resolve(declaration.statements);
+            }
+        }
+
+        // Anything kept from a broken version could be stale, so the next
+        // update starts from scratch.
+        if (reporter.hadError) {
+            source = new byte[0];
+            declarations = new ArrayList<>();
+            return null;
+        }
+
+        Optimizer optimizer = new Optimizer();
+        for (Declaration declaration : parsed) {
+            declaration.statements =
+                    optimizer.optimize(declaration.statements);
+        }
+
+        if (resynced) {
+            for (int i = next; i < declarations.size(); i++) {
+                Declaration declaration = declarations.get(i);
+                declaration.start += delta;
+                declaration.end += delta;
+                declaration.endLine += lineDelta;
+                declaration.shift.lines += lineDelta;
+                updated.add(declaration);
+            }
+        }
+
+        Reset reset = new Reset();
+        for (Declaration declaration : updated) {
+            if (!parsed.contains(declaration)) {
+                reset.reset(declaration.statements);
+            }
+        }
+
+        source = text;
+        declarations = updated;
+
+        List<Stmt> program = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            program.addAll(declaration.statements);
+        }
+        return program;
+    }
+
+    // Clears what running a tree records in its nodes.
+    private static class Reset
+            implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        void reset(List<Stmt> statements) {
+            for (Stmt statement : statements) reset(statement);
+        }
+
+        private void reset(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        private void reset(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.specialization = Specialization.UNINITIALIZED;
+            reset(expr.left);
+            reset(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            reset(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.specialization = Specialization.UNINITIALIZED;
+            reset(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.access == Access.GLOBAL) expr.slot = -1;
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.access == Access.GLOBAL) expr.slot = -1;
+            reset(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            reset(expr.left);
+            reset(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr.cachedTarget = null;
+            reset(expr.callee);
+            for (Expr argument : expr.arguments) reset(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitAnonFuncExpr(Expr.AnonFunc expr) {
+            expr.profile = new JitProfile();
+            reset(expr.body);
+            return null;
+        }
+
+        @Override
+        public Void visitListExpr(Expr.List expr) {
+            for (Expr element : expr.exprs) reset(element);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            reset(expr._if);
+            reset(expr._then);
+            reset(expr._else);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            reset(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            reset(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            reset(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.access == Access.GLOBAL) stmt.slot = -1;
+            reset(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            reset(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            reset(stmt._if);
+            reset(stmt._then);
+            reset(stmt._else);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.profile = new JitProfile();
+            reset(stmt.condition);
+            reset(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            if (stmt.access == Access.GLOBAL) stmt.slot = -1;
+            stmt.profile = new JitProfile();
+            reset(stmt.body);
+            return null;
+        }
+    }
+
+    private static int countLines(byte[] text, int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (text[i] == '\n') lines++;
+        }
+        return lines;
+    }
+}
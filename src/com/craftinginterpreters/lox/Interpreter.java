@@ -1,18 +1,39 @@
 package com.craftinginterpreters.lox;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>,
-                             Stmt.Visitor<Void> {
+                             Stmt.Visitor<Completion> {
+    private final ErrorReporter reporter;
+    // Buffered, and only flushed once the program stops.
+    private final PrintWriter out;
+    private final char[] digits = new char[Numbers.MAX_LENGTH];
     final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
+    // The frame of the function running, or of the top-level code.
+    private Environment environment = Environment.topLevel();
+    // Stands in for the result of a call to a Lox function that hasn't
+    // been run yet. Its body and frame wait in callBody and callFrame.
+    private static final Object PENDING = new Object();
+
+    // The value of the return statement that completed with RETURN.
+    private Object returnValue = null;
+    private JitProfile callProfile = null;
+    private List<Stmt> callBody = null;
+    private Environment callFrame = null;
+    // The function whose body is running, which loop iterations count
+    // towards compiling. Null at the top level.
+    private JitProfile running = null;
+    // Set by evaluateNumber() when the expression turned out not to produce
+    // a number; the value it did produce is left in nonNumber.
+    private boolean unexpected = false;
+    private Object nonNumber = null;
+
+    Interpreter(ErrorReporter reporter, PrintWriter out) {
+        this.reporter = reporter;
+        this.out = out;
+        globals.define(Symbol.intern("clock"), new LoxCallable() {
             @Override
             public int arity() { return 0; }
 
@@ -33,101 +54,248 @@ class Interpreter implements Expr.Visitor<Object>,
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            // What the program printed comes out before the error.
+            out.flush();
+            reporter.runtimeError(error);
+        } finally {
+            out.flush();
         }
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            // The assigned value isn't needed, so a number can stay unboxed.
+            assign((Expr.Assign)stmt.expression);
+        } else {
+            evaluate(stmt.expression);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        // A number is printed without being boxed or turned into a String.
+        Object value;
+        if (isNumeric(stmt.expression)) {
+            double number = evaluateNumber(stmt.expression);
+            if (!unexpected) {
+                printNumber(number);
+                return Completion.NORMAL;
+            }
+            value = takeNonNumber();
+        } else {
+            value = evaluate(stmt.expression);
+        }
+
+        if (value instanceof Double) {
+            printNumber((double)value);
+        } else {
+            out.println(stringify(value));
+        }
+        return Completion.NORMAL;
+    }
+
+    void printNumber(double value) {
+        Numbers.println(out, value, digits);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (stmt.access == Access.LOCAL && isNumeric(stmt.initializer)) {
+            double number = evaluateNumber(stmt.initializer);
+            if (!unexpected) {
+                environment.setNumber(stmt.slot, number);
+            } else {
+                environment.set(stmt.slot, takeNonNumber());
+            }
+            return Completion.NORMAL;
+        }
+
+        // Each time the declaration runs, the variable gets a new cell, so
+        // closures made in different loop iterations don't share it. A
+        // closure in the initializer that refers to the variable captures
+        // that cell, so it goes in first.
+        Cell cell = null;
+        if (stmt.access == Access.CELL) {
+            cell = new Cell(null);
+            environment.set(stmt.slot, cell);
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        switch (stmt.access) {
+            case GLOBAL:
+                stmt.slot = globals.global(stmt.name.symbol, stmt.slot);
+                globals.define(stmt.slot, value);
+                break;
+            case LOCAL: environment.set(stmt.slot, value); break;
+            default: cell.value = value; break;
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        // Its locals have slots in the frame already.
+        if (stmt.frameSize > 0) environment.reserve(stmt.frameSize);
+        return executeStatements(stmt.statements);
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt._if))) {
-            execute(stmt._then);
+            return execute(stmt._then);
         } else if (stmt._else != null) {
-            execute(stmt._else);
+            return execute(stmt._else);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        for (;;) {
+            // Once the loop is hot, its compiled code takes over at the
+            // start of an iteration and runs the rest of it.
+            if (++stmt.profile.hotness >= JitCompiler.THRESHOLD &&
+                    runCompiled(stmt)) {
+                break;
+            }
+            if (!isTruthy(evaluate(stmt.condition))) break;
+
+            if (running != null) running.hotness++;
+            Completion completion;
             try {
-                execute(stmt.body);
+                completion = execute(stmt.body);
             } catch (Break brk) {
                 break;
             }
+
+            if (completion == Completion.BREAK) break;
+            if (completion != Completion.NORMAL) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new Break();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        switch (stmt.access) {
+            case GLOBAL:
+                stmt.slot = globals.global(stmt.name.symbol, stmt.slot);
+                globals.define(stmt.slot,
+                        new LoxFunction(stmt, capture(stmt.upvalues)));
+                break;
+            case LOCAL:
+                environment.set(stmt.slot,
+                        new LoxFunction(stmt, capture(stmt.upvalues)));
+                break;
+            default:
+                // The cell goes in first, so a function that calls itself
+                // captures its own cell.
+                Cell cell = new Cell(null);
+                environment.set(stmt.slot, cell);
+                cell.value = new LoxFunction(stmt, capture(stmt.upvalues));
+                break;
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.value instanceof Expr.Call) {
+            // A call is in tail position here, so the function making it
+            // is finished. Its caller runs the callee in its place.
+            value = prepareCall((Expr.Call)stmt.value);
+            if (value == PENDING) return Completion.TAIL_CALL;
+        } else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
+        switch (expr.access) {
+            case GLOBAL:
+                expr.slot = globals.global(expr.name.symbol, expr.slot);
+                globals.assign(expr.name, expr.slot, value);
+                break;
+            case LOCAL: environment.set(expr.slot, value); break;
+            case CELL: environment.cell(expr.slot).value = value; break;
+            case UPVALUE: environment.upvalues[expr.slot].value = value; break;
         }
 
         return value;
     }
 
+    private void assign(Expr.Assign expr) {
+        if (expr.access != Access.LOCAL || !isNumeric(expr.value)) {
+            visitAssignExpr(expr);
+            return;
+        }
+
+        evaluateNumber(expr);
+        if (unexpected) takeNonNumber();
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        Object result = prepareCall(expr);
+        if (result == PENDING) {
+            return invoke(callProfile, callBody, callFrame);
+        }
+        return result;
+    }
+
+    // Evaluates the callee and the arguments and checks the call. A native
+    // function is called right away. A Lox function is only bound to its
+    // new frame and PENDING is returned, which lets a tail call run it
+    // without growing the Java stack.
+    private Object prepareCall(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
+        // A call site almost always calls the same function, and that
+        // function has already passed the checks below. Its arguments go
+        // straight into the new frame. Hot functions go the long way, where
+        // the compiled code is.
+        Stmt.Function cached = expr.cachedTarget;
+        if (callee instanceof LoxFunction &&
+                ((LoxFunction)callee).declaration == cached &&
+                !JitCompiler.isHot(cached.profile)) {
+            LoxFunction function = (LoxFunction)callee;
+            Environment frame = function.newFrame();
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                Expr argument = expr.arguments.get(i);
+                if (isNumeric(argument)) {
+                    double number = evaluateNumber(argument);
+                    if (!unexpected) {
+                        frame.setNumber(i, number);
+                    } else {
+                        frame.set(i, takeNonNumber());
+                    }
+                } else {
+                    frame.set(i, evaluate(argument));
+                }
+            }
+            frame.capture(function.declaration.capturedParams);
+            return pending(function.declaration.profile,
+                    function.declaration.body, frame);
+        }
+
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
@@ -145,14 +313,270 @@ class Interpreter implements Expr.Visitor<Object>,
                     arguments.size() + ".");
         }
 
+        if (function instanceof LoxFunction) {
+            Stmt.Function declaration = ((LoxFunction)function).declaration;
+            expr.cachedTarget = declaration;
+            Object result = runCompiled(declaration.profile,
+                    declaration.params, declaration.body, arguments);
+            if (result != null) return result;
+            return pending(declaration.profile, declaration.body,
+                    ((LoxFunction)function).bind(arguments));
+        } else if (function instanceof LoxAnonFunction) {
+            Expr.AnonFunc expression = ((LoxAnonFunction)function).expression;
+            Object result = runCompiled(expression.profile,
+                    expression.params, expression.body, arguments);
+            if (result != null) return result;
+            return pending(expression.profile, expression.body,
+                    ((LoxAnonFunction)function).bind(arguments));
+        }
         return function.call(this, arguments);
     }
 
+    // Runs a hot function's compiled code, compiling it first if need be.
+    // Returns null if the tree-walker has to run the call after all.
+    private Object runCompiled(JitProfile profile, List<Token> params,
+                               List<Stmt> body, List<Object> arguments) {
+        if (!JitCompiler.isHot(profile)) return null;
+        JitCode code = JitCompiler.compile(profile, params, body, globals);
+        if (code == null) return null;
+
+        try {
+            Object result = code.call(globals, arguments);
+            // The code only takes numbers.
+            if (result == null) JitCompiler.deoptimize(profile);
+            return result;
+        } catch (Deoptimization deoptimization) {
+            JitCompiler.deoptimize(deoptimization.profile);
+            return null;
+        } finally {
+            // Compiled code never calls back into the tree-walker, so none
+            // is running below this. Calls a throw cut short never left.
+            globals.depth = 0;
+        }
+    }
+
+    // Returns false if the tree-walker has to go on running the loop, from
+    // the start of an iteration.
+    private boolean runCompiled(Stmt.While stmt) {
+        if (!JitCompiler.isHot(stmt.profile)) return false;
+        JitCode code = JitCompiler.compileLoop(stmt, globals);
+        if (code == null) return false;
+
+        try {
+            code.loop(globals, environment, this);
+            return true;
+        } catch (Deoptimization deoptimization) {
+            JitCompiler.deoptimize(deoptimization.profile);
+            return false;
+        } finally {
+            globals.depth = 0;
+        }
+    }
+
+    private Object pending(JitProfile profile, List<Stmt> body,
+                           Environment frame) {
+        callProfile = profile;
+        callBody = body;
+        callFrame = frame;
+        return PENDING;
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.specialization == Specialization.NUMBER) {
+            return numberBinary(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        // Fast paths for the operand types this node has seen before. A
+        // miss falls through to the generic path, which respecializes.
+        switch (expr.specialization) {
+            case STRING:
+                if (isString(left) && isString(right)) {
+                    return stringBinary(expr, left, right);
+                }
+                break;
+        }
+
+        specialize(expr, left, right);
+        return genericBinary(expr, left, right);
+    }
+
+    private void specialize(Expr.Binary expr, Object left, Object right) {
+        if (expr.specialization != Specialization.UNINITIALIZED) {
+            expr.specialization = Specialization.GENERIC;
+        } else if (left instanceof Double && right instanceof Double) {
+            expr.specialization = Specialization.NUMBER;
+        } else if (isString(left) && isString(right) &&
+                (expr.operator.type == TokenType.PLUS ||
+                 expr.operator.type == TokenType.EQUAL_EQUAL ||
+                 expr.operator.type == TokenType.BANG_EQUAL)) {
+            expr.specialization = Specialization.STRING;
+        } else {
+            expr.specialization = Specialization.GENERIC;
+        }
+    }
+
+    // Evaluates both operands without boxing them. If either one isn't a
+    // number after all, the node goes generic with the values it already
+    // has, so nothing is evaluated twice.
+    private Object numberBinary(Expr.Binary expr) {
+        double left = evaluateNumber(expr.left);
+        if (unexpected) {
+            Object leftValue = takeNonNumber();
+            Object rightValue = evaluate(expr.right);
+            expr.specialization = Specialization.GENERIC;
+            return genericBinary(expr, leftValue, rightValue);
+        }
+
+        double right = evaluateNumber(expr.right);
+        if (unexpected) {
+            Object rightValue = takeNonNumber();
+            expr.specialization = Specialization.GENERIC;
+            return genericBinary(expr, left, rightValue);
+        }
+
+        switch (expr.operator.type) {
+            // Matches Double.equals(), which isEqual() relies on.
+            case BANG_EQUAL:
+                return Double.doubleToLongBits(left) !=
+                        Double.doubleToLongBits(right);
+            case EQUAL_EQUAL:
+                return Double.doubleToLongBits(left) ==
+                        Double.doubleToLongBits(right);
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            case MINUS: return left - right;
+            case PLUS: return left + right;
+            case SLASH:
+                if (right == 0.0)
+                    throw new RuntimeError(expr.operator, "Can not divide by zero");
+
+                return left / right;
+            case STAR: return left * right;
+        }
+
+        return null;
+    }
+
+    // Like evaluate(), but for expressions expected to produce a number.
+    // Arithmetic on such numbers runs on primitives, so intermediate
+    // results are never boxed. When the value isn't a number, it is handed
+    // back through "unexpected" and "nonNumber" instead.
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (isNumeric(binary)) return numberArithmetic(binary);
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.access == Access.LOCAL) {
+                if (environment.isUnboxed(variable.slot)) {
+                    return environment.getNumber(variable.slot);
+                }
+                return unbox(environment.get(variable.slot));
+            }
+        } else if (expr instanceof Expr.Literal) {
+            return unbox(((Expr.Literal)expr).value);
+        } else if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            if (assign.access == Access.LOCAL && isNumeric(assign.value)) {
+                double value = evaluateNumber(assign.value);
+                if (!unexpected) {
+                    environment.setNumber(assign.slot, value);
+                    return value;
+                }
+
+                Object other = takeNonNumber();
+                environment.set(assign.slot, other);
+                return unbox(other);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (isNumeric(unary)) {
+                double right = evaluateNumber(unary.right);
+                if (!unexpected) return -right;
+
+                takeNonNumber();
+                unary.specialization = Specialization.GENERIC;
+                throw new RuntimeError(unary.operator, "Operand must be a number.");
+            }
+        }
+
+        return unbox(evaluate(expr));
+    }
+
+    private double numberArithmetic(Expr.Binary expr) {
+        double left = evaluateNumber(expr.left);
+        if (unexpected) {
+            Object leftValue = takeNonNumber();
+            expr.specialization = Specialization.GENERIC;
+            return unbox(genericBinary(expr, leftValue, evaluate(expr.right)));
+        }
+
+        double right = evaluateNumber(expr.right);
+        if (unexpected) {
+            expr.specialization = Specialization.GENERIC;
+            return unbox(genericBinary(expr, left, takeNonNumber()));
+        }
+
+        switch (expr.operator.type) {
+            case MINUS: return left - right;
+            case PLUS: return left + right;
+            case SLASH:
+                if (right == 0.0)
+                    throw new RuntimeError(expr.operator, "Can not divide by zero");
+
+                return left / right;
+            default: return left * right;
+        }
+    }
+
+    // Whether the expression is arithmetic that has only seen numbers.
+    private boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.specialization != Specialization.NUMBER) return false;
+            TokenType type = binary.operator.type;
+            return type == TokenType.MINUS || type == TokenType.PLUS ||
+                    type == TokenType.SLASH || type == TokenType.STAR;
+        } else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).specialization == Specialization.NUMBER;
+        }
+        return false;
+    }
+
+    private double unbox(Object value) {
+        if (value instanceof Double) return (double)value;
+
+        unexpected = true;
+        nonNumber = value;
+        return 0;
+    }
+
+    private Object takeNonNumber() {
+        Object value = nonNumber;
+        unexpected = false;
+        nonNumber = null;
+        return value;
+    }
+
+    private Object stringBinary(Expr.Binary expr, Object left, Object right) {
+        switch (expr.operator.type) {
+            case BANG_EQUAL: return !isEqual(left, right);
+            case EQUAL_EQUAL: return isEqual(left, right);
+            case PLUS: return Rope.concat(left, right);
+        }
+
+        return null;
+    }
+
+    private Object genericBinary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
@@ -172,14 +596,14 @@ class Interpreter implements Expr.Visitor<Object>,
                 checkNumberOperands(expr.operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
-                if (left instanceof String && right instanceof String)
-                    return (String)left + (String)right;
+                if (isString(left) && isString(right))
+                    return Rope.concat(left, right);
                 if (left instanceof Double && right instanceof Double)
                     return (Double)left + (Double)right;
-                if (left instanceof String)
-                    return (String)left + stringify(right);
-                if (right instanceof String)
-                    return stringify(left) + (String)right;
+                if (isString(left))
+                    return Rope.concat(left, stringify(right));
+                if (isString(right))
+                    return Rope.concat(stringify(left), right);
 
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
             case SLASH:
@@ -203,7 +627,14 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        switch (expr.access) {
+            case LOCAL: return environment.get(expr.slot);
+            case CELL: return environment.cell(expr.slot).value;
+            case UPVALUE: return environment.upvalues[expr.slot].value;
+            default:
+                expr.slot = globals.global(expr.name.symbol, expr.slot);
+                return globals.get(expr.name, expr.slot);
+        }
     }
 
     @Override
@@ -214,6 +645,28 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
+
+        switch (expr.specialization) {
+            case NUMBER:
+                if (right instanceof Double) return -(double)right;
+                break;
+            case BOOLEAN:
+                if (right instanceof Boolean) return !(boolean)right;
+                break;
+        }
+
+        if (expr.specialization != Specialization.UNINITIALIZED) {
+            expr.specialization = Specialization.GENERIC;
+        } else if (expr.operator.type == TokenType.MINUS &&
+                right instanceof Double) {
+            expr.specialization = Specialization.NUMBER;
+        } else if (expr.operator.type == TokenType.BANG &&
+                right instanceof Boolean) {
+            expr.specialization = Specialization.BOOLEAN;
+        } else {
+            expr.specialization = Specialization.GENERIC;
+        }
+
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperand(expr.operator, right);
@@ -258,54 +711,111 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitAnonFuncExpr(Expr.AnonFunc expr) {
-        LoxAnonFunction func = new LoxAnonFunction(expr, environment);
+        LoxAnonFunction func = new LoxAnonFunction(expr, capture(expr.upvalues));
         return func;
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+    // Collects the cells a new closure captures: from the running frame,
+    // or passed on from the running closure's own upvalues.
+    private Cell[] capture(int[] upvalues) {
+        if (upvalues.length == 0) return Environment.NO_UPVALUES;
+
+        Cell[] cells = new Cell[upvalues.length];
+        for (int i = 0; i < upvalues.length; i++) {
+            int source = upvalues[i];
+            cells[i] = source >= 0
+                    ? environment.cell(source)
+                    : environment.upvalues[-1 - source];
         }
+        return cells;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+    public Completion executeBlock(List<Stmt> statements,
+                                   Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
+            return executeStatements(statements);
+        } finally {
+            this.environment = previous;
+        }
+    }
 
-            for (Stmt statement : statements) {
-                execute(statement);
+    private Completion executeStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    // Runs a function body in a frame already holding the arguments. Tail
+    // calls are trampolined here: the callee's body replaces the caller's
+    // and runs in the same loop, so the Java stack doesn't grow.
+    Object invoke(JitProfile profile, List<Stmt> body, Environment frame) {
+        JitProfile caller = running;
+        try {
+            for (;;) {
+                running = profile;
+                profile.hotness++;
+                Completion completion = executeBlock(body, frame);
+                if (completion != Completion.TAIL_CALL) {
+                    return callResult(completion);
+                }
+
+                profile = callProfile;
+                body = callBody;
+                frame = callFrame;
+                callProfile = null;
+                callBody = null;
+                callFrame = null;
             }
         } finally {
-            this.environment = previous;
+            running = caller;
         }
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    // Turns the way a function body completed into the result of the call.
+    private Object callResult(Completion completion) {
+        if (completion == Completion.RETURN) {
+            Object value = returnValue;
+            returnValue = null;
+            return value;
+        }
+
+        // The parser only requires a break to be inside some loop, which can
+        // enclose the function rather than be inside it. Such a break still
+        // exits that loop, so it has to unwind through the call.
+        if (completion == Completion.BREAK) throw new Break();
+        return null;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Object evaluate(Expr expr) {
+        return expr.accept(this);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isString(Object object) {
+        return object instanceof String || object instanceof Rope;
+    }
+
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         if (left == null) return false;
 
+        // A string may still be in pieces.
+        if (left instanceof Rope) left = left.toString();
+        if (right instanceof Rope) right = right.toString();
+
         return left.equals(right);
     }
 
@@ -319,15 +829,9 @@ class Interpreter implements Expr.Visitor<Object>,
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (object instanceof Double) return Numbers.toString((double)object);
         return object.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// The compiled code of one function or while loop. JitCompiler generates a
+// subclass that overrides the callN() method for the function's arity, or
+// loop(). Every value in compiled code is an unboxed double, and its
+// globals and calls are guarded by the helpers below, which deoptimize
+// when a guard fails.
+abstract class JitCode {
+    static final int MAX_ARITY = 4;
+    // How deep compiled code may call itself before it deoptimizes. The
+    // default leaves room on a default-sized stack for the tree-walker
+    // frames below it.
+    static final int MAX_DEPTH = Integer.getInteger("lox.jitMaxDepth", 4096);
+
+    final JitProfile profile;
+    final int arity;
+    // The global names and operator tokens the generated code refers to by
+    // index.
+    private final Object[] constants;
+    // For each global name, its number in the globals the code last ran
+    // with, checked the way the tree-walker checks the one in a node.
+    private final int[] globals;
+
+    protected JitCode(JitProfile profile, Object[] constants, int arity) {
+        this.profile = profile;
+        this.constants = constants;
+        this.globals = new int[constants.length];
+        Arrays.fill(this.globals, -1);
+        this.arity = arity;
+    }
+
+    double call0(Environment globals) {
+        throw new AssertionError();
+    }
+
+    double call1(Environment globals, double a) {
+        throw new AssertionError();
+    }
+
+    double call2(Environment globals, double a, double b) {
+        throw new AssertionError();
+    }
+
+    double call3(Environment globals, double a, double b, double c) {
+        throw new AssertionError();
+    }
+
+    double call4(Environment globals, double a, double b, double c,
+                 double d) {
+        throw new AssertionError();
+    }
+
+    // Runs the rest of a loop the tree-walker has started, in the
+    // environment the loop is in. The variables from outside the loop it
+    // uses are stored back when it finishes or throws.
+    void loop(Environment globals, Environment frame,
+              Interpreter interpreter) {
+        throw new AssertionError();
+    }
+
+    // Calls the code from the tree-walker. Returns null without running it
+    // if an argument isn't a number.
+    Object call(Environment globals, List<Object> arguments) {
+        for (Object argument : arguments) {
+            if (!(argument instanceof Double)) return null;
+        }
+
+        switch (arity) {
+            case 0: return call0(globals);
+            case 1: return call1(globals, number(arguments, 0));
+            case 2: return call2(globals, number(arguments, 0),
+                    number(arguments, 1));
+            case 3: return call3(globals, number(arguments, 0),
+                    number(arguments, 1), number(arguments, 2));
+            default: return call4(globals, number(arguments, 0),
+                    number(arguments, 1), number(arguments, 2),
+                    number(arguments, 3));
+        }
+    }
+
+    private static double number(List<Object> arguments, int index) {
+        return (Double)arguments.get(index);
+    }
+
+    // Reads a global the code expects to be a number.
+    final double global(Environment globals, int constant) {
+        Object value = globals.lookup(globalIndex(globals, constant));
+        if (value instanceof Double) return (double)value;
+        throw new Deoptimization(profile);
+    }
+
+    // Reads a variable declared before a loop that the code expects to be
+    // a number.
+    final double local(Environment frame, int slot) {
+        if (frame.isUnboxed(slot)) return frame.getNumber(slot);
+        Object value = frame.get(slot);
+        if (value instanceof Double) return (double)value;
+        throw new Deoptimization(profile);
+    }
+
+    final void setLocal(Environment frame, int slot, double value) {
+        frame.setNumber(slot, value);
+    }
+
+    final void setGlobal(Environment globals, int constant, double value) {
+        globals.define(globalIndex(globals, constant), value);
+    }
+
+    private int globalIndex(Environment globals, int constant) {
+        int global = globals.global((Symbol)constants[constant],
+                this.globals[constant]);
+        this.globals[constant] = global;
+        return global;
+    }
+
+    // Compiled code doesn't trampoline tail calls to other functions, so
+    // deep recursion deoptimizes before the Java stack runs out, and the
+    // tree-walker, which does, runs the call instead.
+    final void enter(Environment globals) {
+        if (++globals.depth > MAX_DEPTH) throw new Deoptimization(profile);
+    }
+
+    final void leave(Environment globals) {
+        globals.depth--;
+    }
+
+    final void print(Interpreter interpreter, double value) {
+        interpreter.printNumber(value);
+    }
+
+    // Finds the code of the function a global names, compiling it if it
+    // hasn't been yet.
+    final JitCode target(Environment globals, int constant, int arity) {
+        Object callee = globals.lookup(globalIndex(globals, constant));
+        JitCode code = JitCompiler.codeFor(callee, globals);
+        if (code == null || code.arity != arity) {
+            throw new Deoptimization(profile);
+        }
+        return code;
+    }
+
+    final RuntimeError divideByZero(int constant) {
+        return new RuntimeError((Token)constants[constant],
+                "Can not divide by zero");
+    }
+
+    final Deoptimization deoptimize() {
+        return new Deoptimization(profile);
+    }
+
+    // Whether a loop that threw this has to be rewound to the start of the
+    // iteration, for the tree-walker to run that iteration again. Other
+    // exceptions leave its variables as they were when it was thrown.
+    static boolean rewinds(Throwable error) {
+        return error instanceof Deoptimization;
+    }
+}
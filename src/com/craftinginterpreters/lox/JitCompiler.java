@@ -0,0 +1,724 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.ClassWriter.*;
+
+// Compiles hot functions to JVM bytecode, which HotSpot then turns into
+// machine code like any other Java method. Only functions that do nothing
+// but arithmetic on numbers qualify: their parameters, locals and return
+// values are kept as unboxed doubles, and they can read globals holding
+// numbers and call global functions that qualify too. Such code has no
+// side effects, so when one of its guards fails it deoptimizes by
+// throwing, and the tree-walker runs the whole call again from the start.
+//
+// A hot while loop is compiled the same way and takes over from the
+// tree-walker at the start of an iteration, which is on-stack replacement.
+// The variables from outside the loop it uses are read into JVM locals
+// when it starts and stored back when it stops. As the loop does have
+// side effects, a deoptimization in the middle of an iteration stores them
+// back as they were when the iteration began, and the tree-walker runs the
+// iteration again. For that to be safe, a loop that prints can't call
+// functions, which are the only thing that can deoptimize after the loop
+// has started.
+//
+// Each function gets a hidden class of its own, which can be unloaded
+// again once the function's code is thrown away.
+class JitCompiler {
+    static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty("lox.jit", "true"));
+    // Calls and loop iterations before a function is compiled.
+    static final int THRESHOLD = Integer.getInteger("lox.jitThreshold", 1000);
+    private static final int MAX_DEOPTIMIZATIONS = 3;
+
+    private static final String CODE = "com/craftinginterpreters/lox/JitCode";
+    // Hidden classes get a unique suffix added to their name, so every
+    // function can use the same one.
+    private static final String NAME =
+            "com/craftinginterpreters/lox/JitFunction";
+    private static final String ENVIRONMENT =
+            "Lcom/craftinginterpreters/lox/Environment;";
+    private static final String CONSTRUCTOR =
+            "(Lcom/craftinginterpreters/lox/JitProfile;[Ljava/lang/Object;I)V";
+    private static final String LOOP = "(" + ENVIRONMENT + ENVIRONMENT +
+            "Lcom/craftinginterpreters/lox/Interpreter;)V";
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // Aborts compiling a function that uses something compiled code can't
+    // do, such as printing or working with strings.
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // A variable from outside a compiled loop. It is a global if it has a
+    // name, and otherwise the local in that slot of the loop's frame.
+    private static class Outside {
+        final Symbol global;
+        final int slot;
+        boolean assigned = false;
+        // Its JVM local, and the one holding its value from the start of
+        // the iteration if the loop assigns it.
+        int local;
+        int saved;
+
+        Outside(Symbol global, int slot) {
+            this.global = global;
+            this.slot = slot;
+        }
+    }
+
+    private final JitProfile profile;
+    private final Environment globals;
+    // Set when compiling a loop rather than a function.
+    private final boolean osr;
+    // A loop is compiled twice. The first pass finds the variables from
+    // outside it, whose JVM locals the second one sets up front.
+    private final boolean scanning;
+    private final List<Outside> outside;
+    private boolean calls = false;
+    private boolean prints = false;
+    // The functions being compiled further up, so recursion doesn't try to
+    // compile a function that is already on its way.
+    private final Set<JitProfile> compiling;
+    private final List<Object> constants = new ArrayList<>();
+    private ClassWriter.Code code;
+    // Frame slot s lives in JVM locals base + 2 * s, doubles taking two.
+    private int base;
+    // The frame slots of the variables declared inside a compiled loop.
+    private final Set<Integer> declared = new HashSet<>();
+    private final Deque<ClassWriter.Label> loopExits = new ArrayDeque<>();
+    private final ClassWriter.Label start = new ClassWriter.Label();
+
+    private JitCompiler(JitProfile profile, Environment globals,
+                        Set<JitProfile> compiling) {
+        this(profile, globals, compiling, false, null);
+    }
+
+    private JitCompiler(JitProfile profile, Environment globals,
+                        Set<JitProfile> compiling, boolean osr,
+                        List<Outside> outside) {
+        this.profile = profile;
+        this.globals = globals;
+        this.compiling = compiling;
+        this.osr = osr;
+        this.scanning = osr && outside == null;
+        this.outside = outside == null ? new ArrayList<>() : outside;
+    }
+
+    static boolean isHot(JitProfile profile) {
+        return ENABLED && !profile.abandoned &&
+                (profile.code != null || profile.hotness >= THRESHOLD);
+    }
+
+    static void deoptimize(JitProfile profile) {
+        profile.code = null;
+        profile.hotness = 0;
+        if (++profile.deoptimizations >= MAX_DEOPTIMIZATIONS) {
+            profile.abandoned = true;
+        }
+    }
+
+    // Returns the compiled code of a function, compiling it first if need
+    // be, or null if the callee isn't a Lox function or can't be compiled.
+    static JitCode codeFor(Object callee, Environment globals) {
+        if (callee instanceof LoxFunction) {
+            JitCode code = ((LoxFunction)callee).declaration.profile.code;
+            if (code != null) return code;
+        }
+        return codeFor(callee, globals, new HashSet<>());
+    }
+
+    private static JitCode codeFor(Object callee, Environment globals,
+                                   Set<JitProfile> compiling) {
+        if (callee instanceof LoxFunction) {
+            Stmt.Function declaration = ((LoxFunction)callee).declaration;
+            return compile(declaration.profile, declaration.params,
+                    declaration.body, globals, compiling);
+        } else if (callee instanceof LoxAnonFunction) {
+            Expr.AnonFunc expression = ((LoxAnonFunction)callee).expression;
+            return compile(expression.profile, expression.params,
+                    expression.body, globals, compiling);
+        }
+        return null;
+    }
+
+    static JitCode compile(JitProfile profile, List<Token> params,
+                           List<Stmt> body, Environment globals) {
+        return compile(profile, params, body, globals, new HashSet<>());
+    }
+
+    // The profile may be shared with another engine running the same
+    // tree, so its code is only read once.
+    private static JitCode compile(JitProfile profile, List<Token> params,
+                                   List<Stmt> body, Environment globals,
+                                   Set<JitProfile> compiling) {
+        JitCode code = profile.code;
+        if (!ENABLED || code != null || profile.abandoned) return code;
+
+        compiling.add(profile);
+        try {
+            code = new JitCompiler(profile, globals, compiling)
+                    .compile(params, body);
+            profile.code = code;
+        } catch (Unsupported unsupported) {
+            profile.abandoned = true;
+        } finally {
+            compiling.remove(profile);
+        }
+        return code;
+    }
+
+    static JitCode compileLoop(Stmt.While loop, Environment globals) {
+        JitProfile profile = loop.profile;
+        JitCode code = profile.code;
+        if (!ENABLED || code != null || profile.abandoned) return code;
+
+        Set<JitProfile> compiling = new HashSet<>();
+        try {
+            JitCompiler scan =
+                    new JitCompiler(profile, globals, compiling, true, null);
+            scan.compileLoop(loop);
+            code = new JitCompiler(profile, globals, compiling, true,
+                    scan.outside).compileLoop(loop);
+            profile.code = code;
+        } catch (Unsupported unsupported) {
+            profile.abandoned = true;
+        }
+        return code;
+    }
+
+    private JitCode compile(List<Token> params, List<Stmt> body) {
+        int arity = params.size();
+        if (arity > JitCode.MAX_ARITY) throw new Unsupported();
+
+        ClassWriter writer = classWriter();
+        // The parameters arrive in the locals of their slots.
+        base = 2;
+        code = writer.method(ACC_FINAL, "call" + arity, callDescriptor(arity),
+                base + 2 * arity);
+
+        code.mark(start);
+        for (Stmt statement : body) {
+            statement(statement);
+        }
+        // Falling off the end returns nil, which isn't a number.
+        code.local(ALOAD, 0);
+        code.invoke(INVOKEVIRTUAL, CODE, "deoptimize",
+                "()Lcom/craftinginterpreters/lox/Deoptimization;", 0);
+        code.op(ATHROW, -1);
+
+        return define(writer, arity);
+    }
+
+    // Returns null when scanning.
+    private JitCode compileLoop(Stmt.While loop) {
+        ClassWriter writer = classWriter();
+        int nextLocal = 4;
+        for (Outside variable : outside) {
+            variable.local = nextLocal;
+            nextLocal += 2;
+            if (variable.assigned) {
+                variable.saved = nextLocal;
+                nextLocal += 2;
+            }
+        }
+        base = nextLocal;
+        code = writer.method(ACC_FINAL, "loop", LOOP, nextLocal);
+
+        // Carries the values of the variables into the loop. The saved
+        // copies are set here too so the verifier sees them set in the
+        // handler.
+        for (Outside variable : outside) {
+            load(variable);
+            code.local(DSTORE, variable.local);
+            if (variable.assigned) {
+                code.local(DLOAD, variable.local);
+                code.local(DSTORE, variable.saved);
+            }
+        }
+
+        ClassWriter.Label top = new ClassWriter.Label();
+        ClassWriter.Label exit = new ClassWriter.Label();
+        code.mark(top);
+        for (Outside variable : outside) {
+            if (!variable.assigned) continue;
+            code.local(DLOAD, variable.local);
+            code.local(DSTORE, variable.saved);
+        }
+        condition(loop.condition, exit, false);
+        loopExits.push(exit);
+        statement(loop.body);
+        loopExits.pop();
+        code.jump(GOTO, top, 0);
+        code.mark(exit);
+        store(false);
+        code.op(RETURN, 0);
+
+        ClassWriter.Label handler = new ClassWriter.Label();
+        ClassWriter.Label thrown = new ClassWriter.Label();
+        code.handler(top, exit, handler);
+        code.mark(handler);
+        code.op(DUP, 1);
+        code.invoke(INVOKESTATIC, CODE, "rewinds", "(Ljava/lang/Throwable;)Z",
+                0);
+        code.jump(IFEQ, thrown, -1);
+        store(true);
+        code.op(ATHROW, -1);
+        code.mark(thrown);
+        store(false);
+        code.op(ATHROW, -1);
+
+        if (calls && prints) throw new Unsupported();
+        return scanning ? null : define(writer, 0);
+    }
+
+    private void load(Outside variable) {
+        code.local(ALOAD, 0);
+        if (variable.global != null) {
+            code.local(ALOAD, 1);
+            code.pushInt(constant(variable.global));
+            code.invoke(INVOKEVIRTUAL, CODE, "global",
+                    "(" + ENVIRONMENT + "I)D", -1);
+        } else {
+            code.local(ALOAD, 2);
+            code.pushInt(variable.slot);
+            code.invoke(INVOKEVIRTUAL, CODE, "local",
+                    "(" + ENVIRONMENT + "I)D", -1);
+        }
+    }
+
+    // Stores the variables the loop assigns back where they live, with
+    // their current values or those from the start of the iteration.
+    private void store(boolean saved) {
+        for (Outside variable : outside) {
+            if (variable.assigned) store(variable, saved);
+        }
+    }
+
+    private void store(Outside variable, boolean saved) {
+        code.local(ALOAD, 0);
+        if (variable.global != null) {
+            code.local(ALOAD, 1);
+            code.pushInt(constant(variable.global));
+            code.local(DLOAD, saved ? variable.saved : variable.local);
+            code.invoke(INVOKEVIRTUAL, CODE, "setGlobal",
+                    "(" + ENVIRONMENT + "ID)V", -5);
+        } else {
+            code.local(ALOAD, 2);
+            code.pushInt(variable.slot);
+            code.local(DLOAD, saved ? variable.saved : variable.local);
+            code.invoke(INVOKEVIRTUAL, CODE, "setLocal",
+                    "(" + ENVIRONMENT + "ID)V", -5);
+        }
+    }
+
+    private ClassWriter classWriter() {
+        ClassWriter writer = new ClassWriter(ACC_FINAL | ACC_SUPER, NAME, CODE);
+        ClassWriter.Code constructor =
+                writer.method(ACC_PUBLIC, "<init>", CONSTRUCTOR, 4);
+        constructor.local(ALOAD, 0);
+        constructor.local(ALOAD, 1);
+        constructor.local(ALOAD, 2);
+        constructor.local(ILOAD, 3);
+        constructor.invoke(INVOKESPECIAL, CODE, "<init>", CONSTRUCTOR, -4);
+        constructor.op(RETURN, 0);
+        return writer;
+    }
+
+    private JitCode define(ClassWriter writer, int arity) {
+        // Keeps every jump offset and constant index within 16 bits.
+        if (code.size() > Short.MAX_VALUE ||
+                constants.size() > Short.MAX_VALUE) {
+            throw new Unsupported();
+        }
+
+        try {
+            Class<?> type = lookup.defineHiddenClass(writer.toByteArray(),
+                    true).lookupClass();
+            return (JitCode)type.getConstructor(JitProfile.class,
+                    Object[].class, int.class)
+                    .newInstance(profile, constants.toArray(), arity);
+        } catch (ReflectiveOperationException error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    private static String callDescriptor(int arity) {
+        StringBuilder descriptor = new StringBuilder("(" + ENVIRONMENT);
+        for (int i = 0; i < arity; i++) descriptor.append('D');
+        return descriptor.append(")D").toString();
+    }
+
+    private void statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression)stmt).expression;
+            if (expression instanceof Expr.Assign) {
+                assign((Expr.Assign)expression, false);
+            } else {
+                number(expression);
+                code.op(POP2, -2);
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var)stmt;
+            // Captured variables live in cells.
+            if (var.initializer == null || var.access != Access.LOCAL) {
+                throw new Unsupported();
+            }
+            number(var.initializer);
+            declared.add(var.slot);
+            code.local(DSTORE, base + 2 * var.slot);
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                statement(statement);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            ClassWriter.Label otherwise = new ClassWriter.Label();
+            condition(ifStmt._if, otherwise, false);
+            statement(ifStmt._then);
+            if (ifStmt._else == null) {
+                code.mark(otherwise);
+            } else {
+                ClassWriter.Label end = new ClassWriter.Label();
+                code.jump(GOTO, end, 0);
+                code.mark(otherwise);
+                statement(ifStmt._else);
+                code.mark(end);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While whileStmt = (Stmt.While)stmt;
+            ClassWriter.Label top = new ClassWriter.Label();
+            ClassWriter.Label exit = new ClassWriter.Label();
+            code.mark(top);
+            condition(whileStmt.condition, exit, false);
+            loopExits.push(exit);
+            statement(whileStmt.body);
+            loopExits.pop();
+            code.jump(GOTO, top, 0);
+            code.mark(exit);
+        } else if (stmt instanceof Stmt.Break) {
+            // A break can also leave a loop around the function.
+            if (loopExits.isEmpty()) throw new Unsupported();
+            code.jump(GOTO, loopExits.peek(), 0);
+        } else if (stmt instanceof Stmt.Print && osr) {
+            prints = true;
+            code.local(ALOAD, 0);
+            code.local(ALOAD, 3);
+            number(((Stmt.Print)stmt).expression);
+            code.invoke(INVOKEVIRTUAL, CODE, "print",
+                    "(Lcom/craftinginterpreters/lox/Interpreter;D)V", -4);
+        } else if (stmt instanceof Stmt.Return && !osr) {
+            Expr value = ((Stmt.Return)stmt).value;
+            if (value == null) throw new Unsupported();
+            if (value instanceof Expr.Call) {
+                call((Expr.Call)value, true);
+            } else {
+                number(value);
+            }
+            code.op(DRETURN, -2);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    // Leaves the value of the expression on the stack as a double.
+    private void number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if (!(value instanceof Double)) throw new Unsupported();
+            code.pushDouble((double)value);
+        } else if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            Outside outer = outside(variable.name, variable.access,
+                    variable.slot, false);
+            if (outer != null) {
+                code.local(DLOAD, outer.local);
+                return;
+            }
+            if (variable.access != Access.GLOBAL) {
+                code.local(DLOAD, local(variable.access, variable.slot));
+                return;
+            }
+            code.local(ALOAD, 0);
+            code.local(ALOAD, 1);
+            code.pushInt(constant(variable.name.symbol));
+            code.invoke(INVOKEVIRTUAL, CODE, "global",
+                    "(" + ENVIRONMENT + "I)D", -1);
+        } else if (expr instanceof Expr.Assign) {
+            assign((Expr.Assign)expr, true);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type != TokenType.MINUS) {
+                throw new Unsupported();
+            }
+            number(unary.right);
+            code.op(DNEG, 0);
+        } else if (expr instanceof Expr.Binary) {
+            arithmetic((Expr.Binary)expr);
+        } else if (expr instanceof Expr.Call) {
+            call((Expr.Call)expr, false);
+        } else if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)expr;
+            ClassWriter.Label otherwise = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            condition(ternary._if, otherwise, false);
+            number(ternary._then);
+            code.jump(GOTO, end, 0);
+            code.mark(otherwise);
+            number(ternary._else);
+            code.mark(end);
+        } else if (expr instanceof Expr.List) {
+            List<Expr> exprs = ((Expr.List)expr).exprs;
+            for (int i = 0; i < exprs.size(); i++) {
+                number(exprs.get(i));
+                if (i < exprs.size() - 1) code.op(POP2, -2);
+            }
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void arithmetic(Expr.Binary binary) {
+        int opcode;
+        switch (binary.operator.type) {
+            case PLUS: opcode = DADD; break;
+            case MINUS: opcode = DSUB; break;
+            case STAR: opcode = DMUL; break;
+            case SLASH: opcode = DDIV; break;
+            default: throw new Unsupported();
+        }
+
+        number(binary.left);
+        number(binary.right);
+        if (opcode == DDIV) {
+            ClassWriter.Label nonZero = new ClassWriter.Label();
+            code.op(DUP2, 2);
+            code.op(DCONST_0, 2);
+            code.op(DCMPL, -3);
+            code.jump(IFNE, nonZero, -1);
+            code.local(ALOAD, 0);
+            code.pushInt(constant(binary.operator));
+            code.invoke(INVOKEVIRTUAL, CODE, "divideByZero",
+                    "(I)Lcom/craftinginterpreters/lox/RuntimeError;", -1);
+            code.op(ATHROW, -1);
+            code.mark(nonZero);
+        }
+        code.op(opcode, -2);
+    }
+
+    private void assign(Expr.Assign assign, boolean keepValue) {
+        Outside outer = outside(assign.name, assign.access, assign.slot, true);
+        if (outer == null && assign.access == Access.GLOBAL) {
+            throw new Unsupported();
+        }
+        number(assign.value);
+        if (keepValue) code.op(DUP2, 2);
+        code.local(DSTORE, outer != null
+                ? outer.local : local(assign.access, assign.slot));
+    }
+
+    // Returns the variable if a loop is being compiled and the variable is
+    // from outside it, and null otherwise.
+    private Outside outside(Token name, Access access, int slot,
+                            boolean assigned) {
+        if (!osr) return null;
+
+        Symbol global = null;
+        if (access == Access.GLOBAL) {
+            global = name.symbol;
+            slot = -1;
+        } else if (access != Access.LOCAL || declared.contains(slot)) {
+            return null;
+        }
+
+        for (Outside variable : outside) {
+            if (variable.global == global && variable.slot == slot) {
+                if (assigned) variable.assigned = true;
+                return variable;
+            }
+        }
+        // The second pass knows them all already.
+        if (!scanning) throw new AssertionError();
+
+        Outside variable = new Outside(global, slot);
+        variable.assigned = assigned;
+        outside.add(variable);
+        return variable;
+    }
+
+    private void call(Expr.Call call, boolean tail) {
+        if (!(call.callee instanceof Expr.Variable)) throw new Unsupported();
+        Expr.Variable callee = (Expr.Variable)call.callee;
+        int arity = call.arguments.size();
+        if (callee.access != Access.GLOBAL) throw new Unsupported();
+        JitProfile target = callable(callee.name.symbol, arity);
+
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 1);
+        code.pushInt(constant(callee.name.symbol));
+        code.pushInt(arity);
+        code.invoke(INVOKEVIRTUAL, CODE, "target", "(" + ENVIRONMENT +
+                "II)Lcom/craftinginterpreters/lox/JitCode;", -3);
+
+        if (tail && target == profile) {
+            // Calling itself in tail position becomes a jump back to the
+            // start with the new arguments, so the stack doesn't grow.
+            ClassWriter.Label elsewhere = new ClassWriter.Label();
+            code.op(DUP, 1);
+            code.local(ALOAD, 0);
+            code.jump(IF_ACMPNE, elsewhere, -2);
+            code.op(POP, -1);
+            for (Expr argument : call.arguments) {
+                number(argument);
+            }
+            for (int i = arity - 1; i >= 0; i--) {
+                code.local(DSTORE, base + 2 * i);
+            }
+            code.jump(GOTO, start, 0);
+            code.mark(elsewhere);
+        }
+
+        code.local(ALOAD, 1);
+        for (Expr argument : call.arguments) {
+            number(argument);
+        }
+        if (osr) {
+            // The callee reads globals from the environment.
+            calls = true;
+            for (Outside variable : outside) {
+                if (variable.assigned && variable.global != null) {
+                    store(variable, false);
+                }
+            }
+        }
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 1);
+        code.invoke(INVOKEVIRTUAL, CODE, "enter", "(" + ENVIRONMENT + ")V", -2);
+        code.invoke(INVOKEVIRTUAL, CODE, "call" + arity,
+                callDescriptor(arity), -2 * arity);
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 1);
+        code.invoke(INVOKEVIRTUAL, CODE, "leave", "(" + ENVIRONMENT + ")V", -2);
+    }
+
+    // Checks that the global is currently a function with the right arity
+    // that can be compiled too, so calling it isn't bound to deoptimize.
+    private JitProfile callable(Symbol name, int arity) {
+        Object callee = globals.lookup(name);
+        JitProfile target;
+        List<Token> params;
+        if (callee instanceof LoxFunction) {
+            Stmt.Function declaration = ((LoxFunction)callee).declaration;
+            target = declaration.profile;
+            params = declaration.params;
+        } else if (callee instanceof LoxAnonFunction) {
+            Expr.AnonFunc expression = ((LoxAnonFunction)callee).expression;
+            target = expression.profile;
+            params = expression.params;
+        } else {
+            throw new Unsupported();
+        }
+
+        if (params.size() != arity) throw new Unsupported();
+        if (!compiling.contains(target) &&
+                codeFor(callee, globals, compiling) == null) {
+            throw new Unsupported();
+        }
+        return target;
+    }
+
+    // Jumps to the label if the condition's truthiness is whenTrue and
+    // falls through otherwise.
+    private void condition(Expr expr, ClassWriter.Label label,
+                           boolean whenTrue) {
+        if (expr instanceof Expr.Grouping) {
+            condition(((Expr.Grouping)expr).expression, label, whenTrue);
+        } else if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if (Interpreter.isTruthy(value) == whenTrue) {
+                code.jump(GOTO, label, 0);
+            }
+        } else if (expr instanceof Expr.Unary &&
+                ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            condition(((Expr.Unary)expr).right, label, !whenTrue);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            boolean and = logical.operator.type == TokenType.AND;
+            if (and != whenTrue) {
+                // Either operand alone can decide to jump.
+                condition(logical.left, label, whenTrue);
+                condition(logical.right, label, whenTrue);
+            } else {
+                ClassWriter.Label decided = new ClassWriter.Label();
+                condition(logical.left, decided, !whenTrue);
+                condition(logical.right, label, whenTrue);
+                code.mark(decided);
+            }
+        } else if (expr instanceof Expr.Binary &&
+                comparison((Expr.Binary)expr, label, whenTrue)) {
+            return;
+        } else {
+            // Any number is truthy.
+            number(expr);
+            code.op(POP2, -2);
+            if (whenTrue) code.jump(GOTO, label, 0);
+        }
+    }
+
+    // Returns false if the operator isn't a comparison.
+    private boolean comparison(Expr.Binary binary, ClassWriter.Label label,
+                               boolean whenTrue) {
+        // DCMPG and DCMPL differ in what they push for NaN, which is picked
+        // so that the comparison comes out false.
+        int compare;
+        int ifTrue;
+        int ifFalse;
+        switch (binary.operator.type) {
+            case LESS: compare = DCMPG; ifTrue = IFLT; ifFalse = IFGE; break;
+            case LESS_EQUAL: compare = DCMPG; ifTrue = IFLE; ifFalse = IFGT; break;
+            case GREATER: compare = DCMPL; ifTrue = IFGT; ifFalse = IFLE; break;
+            case GREATER_EQUAL: compare = DCMPL; ifTrue = IFGE; ifFalse = IFLT; break;
+            // Equality compares bits like Double.equals() does.
+            case EQUAL_EQUAL: compare = LCMP; ifTrue = IFEQ; ifFalse = IFNE; break;
+            case BANG_EQUAL: compare = LCMP; ifTrue = IFNE; ifFalse = IFEQ; break;
+            default: return false;
+        }
+
+        number(binary.left);
+        if (compare == LCMP) bits();
+        number(binary.right);
+        if (compare == LCMP) bits();
+        code.op(compare, -3);
+        code.jump(whenTrue ? ifTrue : ifFalse, label, -1);
+        return true;
+    }
+
+    private void bits() {
+        code.invoke(INVOKESTATIC, "java/lang/Double", "doubleToLongBits",
+                "(D)J", 0);
+    }
+
+    private int local(Access access, int slot) {
+        // Variables closures share live in cells.
+        if (access != Access.LOCAL) throw new Unsupported();
+        return base + 2 * slot;
+    }
+
+    private int constant(Object value) {
+        for (int i = 0; i < constants.size(); i++) {
+            if (constants.get(i) == value) return i;
+        }
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
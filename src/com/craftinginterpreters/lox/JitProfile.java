@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// What the JIT knows about one function declaration or while loop: how
+// hot it is and, once it has been compiled, its code. Engines running the
+// same tree share it without locking. A lost update only costs a count or
+// a compile, and the code checks everything it assumes when it runs.
+class JitProfile {
+    // Calls and loop iterations since the function or loop was declared or
+    // its code was last thrown away.
+    int hotness = 0;
+    JitCode code = null;
+    int deoptimizations = 0;
+    // Set once it turns out to use something the JIT can't compile, or
+    // keeps deoptimizing. It stays in the tree-walker for good.
+    boolean abandoned = false;
+}
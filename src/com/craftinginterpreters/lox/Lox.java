@@ -1,90 +1,233 @@
 package com.craftinginterpreters.lox;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
-
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+    private static final long WATCH_INTERVAL_MILLIS = 100;
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        List<String> scripts = new ArrayList<>();
+        boolean useVm = false;
+        boolean useCache = true;
+        boolean watch = false;
+        boolean check = false;
+        for (String arg : args) {
+            if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--check")) {
+                check = true;
+            } else if (arg.equals("--engine=vm")) {
+                useVm = true;
+            } else if (arg.equals("--engine=tree")) {
+                useVm = false;
+            } else if (arg.equals("--no-cache")) {
+                useCache = false;
+            } else if (!arg.startsWith("--")) {
+                scripts.add(arg);
+            } else {
+                usage();
+            }
+        }
+
+        if (watch && (scripts.size() != 1 || check)) usage();
+        if (check && scripts.isEmpty()) usage();
+
+        LoxEngine engine = new LoxEngine(System.out, System.err, useVm);
+        if (watch) {
+            watchFile(engine, scripts.get(0));
+        } else if (scripts.isEmpty()) {
+            runPrompt(engine);
+        } else if (scripts.size() == 1 && !check &&
+                !Files.isDirectory(Paths.get(scripts.get(0)))) {
+            runFile(engine, scripts.get(0), useCache);
         } else {
-            runPrompt();
+            runFiles(scripts, useVm, useCache, check);
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=vm|tree] [--no-cache] " +
+                "[--watch script | --check scripts... | scripts...]");
+        System.exit(64);
+    }
+
+    private static void runFile(LoxEngine engine, String path,
+                                boolean useCache) throws IOException {
+        List<Stmt> statements =
+                load(Paths.get(path), engine.reporter, useCache, useCache);
+        LoxEngine.Result result = statements == null
+                ? LoxEngine.Result.COMPILE_ERROR
+                : engine.execute(statements);
 
         // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        if (result == LoxEngine.Result.COMPILE_ERROR) System.exit(65);
+        if (result == LoxEngine.Result.RUNTIME_ERROR) System.exit(70);
     }
 
-    private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
+    // Takes scripts and directories of them through the front end on a
+    // fork-join pool, one task per file, then runs the scripts one after
+    // another in the order given, each with globals of its own. Nothing
+    // runs unless every script is free of static errors, and with check
+    // set nothing runs at all.
+    private static void runFiles(List<String> paths, boolean useVm,
+                                 boolean useCache, boolean check)
+            throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String path : paths) {
+            files.addAll(scripts(Paths.get(path)));
+        }
 
-        for (;;) {
-            System.out.print("> ");
-            String line = reader.readLine();
-            if (line == null) break;
-            run(line);
-            hadError = false;
+        List<FrontEndTask> tasks = new ArrayList<>();
+        for (Path file : files) {
+            // Checking reads the cache but never adds to it.
+            tasks.add(new FrontEndTask(file, useCache, useCache && !check));
         }
-    }
+        ForkJoinTask.invokeAll(tasks);
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        // Each task held on to its errors so they come out in file order.
+        boolean hadError = false;
+        for (FrontEndTask task : tasks) {
+            System.err.print(task.errors);
+            hadError |= task.reporter.hadError;
+        }
+        if (hadError) System.exit(65);
+        if (check) return;
+
+        boolean hadRuntimeError = false;
+        for (FrontEndTask task : tasks) {
+            ErrorReporter reporter =
+                    new ErrorReporter(System.err, task.file.toString());
+            LoxEngine.Result result = new LoxEngine(
+                    LoxEngine.buffered(System.out), reporter,
+                    useVm).execute(task.join());
+            hadError |= result == LoxEngine.Result.COMPILE_ERROR;
+            hadRuntimeError |= result == LoxEngine.Result.RUNTIME_ERROR;
+        }
+        if (hadError) System.exit(65);
+        if (hadRuntimeError) System.exit(70);
+    }
 
-        // Stop if there was a syntax error.
-        if (hadError) return;
+    // A directory stands for all the .lox files under it, sorted by path.
+    private static List<Path> scripts(Path path) throws IOException {
+        if (!Files.isDirectory(path)) return List.of(path);
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        try (Stream<Path> walk = Files.walk(path)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(file -> file.toString().endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
 
-        // Stop if there was a resolution error.
-        if (hadError) return;
+    private static class FrontEndTask extends RecursiveTask<List<Stmt>> {
+        final Path file;
+        private final boolean readCache;
+        private final boolean writeCache;
+        private final ByteArrayOutputStream errors =
+                new ByteArrayOutputStream();
+        private final PrintStream err = new PrintStream(errors, true);
+        final ErrorReporter reporter;
+
+        FrontEndTask(Path file, boolean readCache, boolean writeCache) {
+            this.file = file;
+            this.readCache = readCache;
+            this.writeCache = writeCache;
+            this.reporter = new ErrorReporter(err, file.toString());
+        }
 
-        interpreter.interpret(statements);
+        @Override
+        protected List<Stmt> compute() {
+            try {
+                return load(file, reporter, readCache, writeCache);
+            } catch (IOException error) {
+                err.println("Could not read " + file + ": " + error);
+                reporter.hadError = true;
+                return null;
+            }
+        }
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
+    // Runs the script again every time it changes. Only the part of the
+    // front end touched by each edit is redone, and each run starts with
+    // fresh globals.
+    private static void watchFile(LoxEngine engine, String path)
+            throws IOException, InterruptedException {
+        Path file = Paths.get(path);
+        ErrorReporter reporter = engine.reporter;
+        IncrementalFrontEnd frontEnd = new IncrementalFrontEnd(reporter);
+        FileTime lastModified = null;
+        long lastSize = -1;
 
-    private static void report(int line, String where,
-                               String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        for (;;) {
+            FileTime modified = Files.getLastModifiedTime(file);
+            long size = Files.size(file);
+            if (!modified.equals(lastModified) || size != lastSize) {
+                lastModified = modified;
+                lastSize = size;
+
+                reporter.hadError = false;
+                reporter.hadRuntimeError = false;
+                List<Stmt> statements = frontEnd.update(Files.readAllBytes(file));
+                if (statements != null) {
+                    engine.reset();
+                    engine.execute(statements);
+                }
+            }
+
+            Thread.sleep(WATCH_INTERVAL_MILLIS);
+        }
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    private static void runPrompt(LoxEngine engine) throws IOException {
+        InputStreamReader input = new InputStreamReader(System.in);
+        BufferedReader reader = new BufferedReader(input);
+
+        for (;;) {
+            System.out.print("> ");
+            String line = reader.readLine();
+            if (line == null) break;
+            engine.eval(line);
         }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    // Returns the program in a script file, or null if it has errors. The
+    // scanner works on the file's bytes, which are never decoded into a
+    // String. They are read into the heap rather than mapped: tokens in the
+    // tree decode their lexemes lazily, and a mapping would show them the
+    // file as it is when they do, even if it has since been rewritten or
+    // truncated. An unchanged script loads its tree from the cache instead
+    // of going through the front end again.
+    private static List<Stmt> load(Path file, ErrorReporter reporter,
+                                   boolean readCache, boolean writeCache)
+            throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (!readCache) return LoxEngine.frontEnd(source, reporter);
+
+        Path cache = AstCache.pathFor(file);
+        byte[] hash = AstCache.hash(source);
+        List<Stmt> statements = AstCache.load(cache, hash);
+        if (statements == null) {
+            statements = LoxEngine.frontEnd(source, reporter);
+            if (statements != null && writeCache) {
+                AstCache.store(cache, hash, statements);
+            }
+        }
+        return statements;
     }
-}
\ No newline at end of file
+}
@@ -3,28 +3,27 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 class LoxAnonFunction implements LoxCallable {
-    private final Expr.AnonFunc expression;
-    private final Environment closure;
-    LoxAnonFunction(Expr.AnonFunc expression, Environment closure) {
+    final Expr.AnonFunc expression;
+    private final Cell[] upvalues;
+    LoxAnonFunction(Expr.AnonFunc expression, Cell[] upvalues) {
         this.expression = expression;
-        this.closure = closure;
+        this.upvalues = upvalues;
     }
 
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < expression.params.size(); i++) {
-            environment.define(expression.params.get(i).lexeme,
-                    arguments.get(i));
-        }
+        return interpreter.invoke(expression.profile, expression.body,
+                bind(arguments));
+    }
 
-        try {
-            interpreter.executeBlock(expression.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+    Environment bind(List<Object> arguments) {
+        Environment frame = new Environment(expression.slotCount, upvalues);
+        for (int i = 0; i < expression.params.size(); i++) {
+            frame.set(i, arguments.get(i));
         }
-        return null;
+        frame.capture(expression.capturedParams);
+        return frame;
     }
 
     @Override
@@ -36,4 +35,4 @@ class LoxAnonFunction implements LoxCallable {
     public String toString() {
         return "<anonymous fn>";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/*
+    An embeddable Lox interpreter. Each engine has its own globals, its own
+    output stream for print and its own stream for error messages, so any
+    number of them can run at the same time on separate threads. Engines
+    share the table that interns identifiers, which is thread-safe and only
+    holds them weakly; a name means nothing until an engine's own globals
+    bind it, so what one engine defines the others never see.
+
+    A tree passed to execute() may also be shared, even while several
+    engines run it at once. Running a tree records what it learns in the
+    nodes: operand types, call targets, where globals were found and the
+    JIT's profiles and code. Each of those is only a hint that is checked
+    before it is used, so a race between engines can cost a fast path but
+    never change what a program does.
+
+    Globals persist from one eval to the next, like lines in the REPL.
+    Calls to eval on the same engine are serialized.
+
+    Printed lines are buffered and only flushed when an eval finishes or
+    hits a runtime error. The buffer for a PrintStream holds
+    -Dlox.outputBuffer characters; a Writer is used as given.
+ */
+public class LoxEngine {
+    private static final int OUTPUT_BUFFER =
+            Integer.getInteger("lox.outputBuffer", 1 << 16);
+
+    public enum Result {
+        OK,
+        COMPILE_ERROR,
+        RUNTIME_ERROR
+    }
+
+    final ErrorReporter reporter;
+    private final PrintWriter out;
+    private final boolean useVm;
+    private Interpreter interpreter;
+    private VM vm;
+
+    public LoxEngine() {
+        this(System.out, System.err);
+    }
+
+    public LoxEngine(PrintStream out, PrintStream err) {
+        this(out, err, false);
+    }
+
+    // Runs programs on the bytecode VM instead of the tree-walker if
+    // useVm is set.
+    public LoxEngine(PrintStream out, PrintStream err, boolean useVm) {
+        this(buffered(out), new ErrorReporter(err), useVm);
+    }
+
+    public LoxEngine(Writer out, PrintStream err, boolean useVm) {
+        this(out, new ErrorReporter(err), useVm);
+    }
+
+    LoxEngine(Writer out, ErrorReporter reporter, boolean useVm) {
+        this.reporter = reporter;
+        this.out = new PrintWriter(out);
+        this.useVm = useVm;
+        reset();
+    }
+
+    // Some PrintStreams, like System.out, flush on every line.
+    static Writer buffered(PrintStream out) {
+        return new BufferedWriter(
+                new OutputStreamWriter(out, Charset.defaultCharset()),
+                OUTPUT_BUFFER);
+    }
+
+    public synchronized Result eval(String source) {
+        reporter.hadError = false;
+        reporter.hadRuntimeError = false;
+        List<Stmt> statements = frontEnd(ByteBuffer.wrap(
+                source.getBytes(Charset.defaultCharset())), reporter);
+        if (statements == null) return Result.COMPILE_ERROR;
+        return execute(statements);
+    }
+
+    // Starts over with fresh globals.
+    synchronized void reset() {
+        if (useVm) {
+            vm = new VM(reporter, out);
+        } else {
+            interpreter = new Interpreter(reporter, out);
+        }
+    }
+
+    // Scans, parses, resolves and optimizes the source, or returns null if
+    // any of that reported an error.
+    static List<Stmt> frontEnd(ByteBuffer source, ErrorReporter reporter) {
+        Parser parser = new Parser(new Scanner(source, reporter));
+        List<Stmt> statements = parser.parse();
+
+        // Stop if there was a syntax or scanning error.
+        if (reporter.hadError) return null;
+
+        Resolver resolver = new Resolver(reporter);
+        resolver.resolve(statements);
+
+        // Stop if there was a resolution error.
+        if (reporter.hadError) return null;
+
+        return new Optimizer().optimize(statements);
+    }
+
+    // Runs a program that has been through the front end.
+    synchronized Result execute(List<Stmt> statements) {
+        if (useVm) {
+            CompiledFunction script = new Compiler(vm).compile(statements);
+
+            // Stop if the program doesn't fit the bytecode format.
+            if (reporter.hadError) return Result.COMPILE_ERROR;
+
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements);
+        }
+
+        return reporter.hadRuntimeError ? Result.RUNTIME_ERROR : Result.OK;
+    }
+}
@@ -3,28 +3,31 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    LoxFunction(Stmt.Function declaration, Environment closure) {
+    final Stmt.Function declaration;
+    private final Cell[] upvalues;
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
     }
 
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
-        }
+        return interpreter.invoke(declaration.profile, declaration.body,
+                bind(arguments));
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+    Environment newFrame() {
+        return new Environment(declaration.slotCount, upvalues);
+    }
+
+    Environment bind(List<Object> arguments) {
+        Environment frame = newFrame();
+        for (int i = 0; i < declaration.params.size(); i++) {
+            frame.set(i, arguments.get(i));
         }
-        return null;
+        frame.capture(declaration.capturedParams);
+        return frame;
     }
 
     @Override
@@ -34,6 +37,6 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
-}
\ No newline at end of file
+}
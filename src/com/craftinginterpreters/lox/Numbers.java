@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintWriter;
+
+// Formats numbers the way Lox shows them, which is Double.toString()
+// without the ".0" it puts after an integer. Integers and short decimals
+// are most of the numbers scripts print, so their digits are written
+// directly instead of through Double.toString().
+final class Numbers {
+    // Double.toString() writes numbers from MIN_PLAIN up to below
+    // PLAIN_LIMIT as plain digits and switches to scientific notation
+    // outside that.
+    private static final double MIN_PLAIN = 1e-3;
+    private static final double PLAIN_LIMIT = 1e7;
+
+    // Any decimal with this many significant digits reads back as a double
+    // that writes out as the same digits again, so the shortest such digits
+    // are the ones Double.toString() picks.
+    private static final int MAX_DIGITS = 15;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // Room for a sign, "0.00" and MAX_DIGITS digits.
+    static final int MAX_LENGTH = MAX_DIGITS + 5;
+
+    private Numbers() {}
+
+    static String toString(double value) {
+        char[] scratch = new char[MAX_LENGTH];
+        int length = format(value, scratch);
+        if (length >= 0) return new String(scratch, 0, length);
+
+        String text = Double.toString(value);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+
+    // Prints the number on a line of its own. The digits go through the
+    // scratch buffer, which must hold MAX_LENGTH chars, so nothing is
+    // allocated unless the number needs scientific notation or more
+    // digits than MAX_DIGITS.
+    static void println(PrintWriter out, double value, char[] scratch) {
+        int length = format(value, scratch);
+        if (length < 0) {
+            out.println(toString(value));
+            return;
+        }
+
+        out.write(scratch, 0, length);
+        out.println();
+    }
+
+    // Writes the number into the buffer and returns how many chars it
+    // took, or -1 when it has to go through Double.toString(). Negative
+    // zero is left to Double.toString() too, which keeps its sign.
+    private static int format(double value, char[] scratch) {
+        double magnitude = Math.abs(value);
+        if (!(magnitude < PLAIN_LIMIT) ||
+                Double.doubleToRawLongBits(value) == Long.MIN_VALUE) {
+            return -1;
+        }
+
+        if (magnitude == (long)magnitude) {
+            return write(scratch, value < 0, (long)magnitude, 0);
+        }
+        if (magnitude < MIN_PLAIN) return -1;
+
+        // Finds the fewest decimal places that read back as the number.
+        int places = 1;
+        int integerDigits = digits((long)magnitude);
+        for (; integerDigits + places <= MAX_DIGITS; places++) {
+            double scaled = Math.rint(magnitude * POWERS_OF_TEN[places]);
+            if (scaled / POWERS_OF_TEN[places] == magnitude) {
+                return write(scratch, value < 0, (long)scaled, places);
+            }
+        }
+        return -1;
+    }
+
+    // Writes scaled / 10^places with that many decimal places, or none at
+    // all when places is 0.
+    private static int write(char[] scratch, boolean negative, long scaled,
+                             int places) {
+        long integer = scaled / POWERS_OF_TEN[places];
+        long fraction = scaled % POWERS_OF_TEN[places];
+
+        int length = 0;
+        if (negative) scratch[length++] = '-';
+        length += digits(integer);
+        int end = length;
+        do {
+            scratch[--end] = (char)('0' + integer % 10);
+            integer /= 10;
+        } while (integer != 0);
+        if (places == 0) return length;
+
+        scratch[length++] = '.';
+        for (int i = length + places - 1; i >= length; i--) {
+            scratch[i] = (char)('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return length + places;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+// Instruction set for the bytecode VM. Operands follow the opcode in the
+// chunk: "u16" operands are two bytes, big-endian; CALL takes a single
+// argument count byte.
+final class OpCode {
+    static final byte CONSTANT      = 0;  // u16 constant index
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;  // u16 slot
+    static final byte SET_LOCAL     = 6;  // u16 slot
+    static final byte GET_GLOBAL    = 7;  // u16 global index
+    static final byte DEFINE_GLOBAL = 8;  // u16 global index
+    static final byte SET_GLOBAL    = 9;  // u16 global index
+    static final byte GET_UPVALUE   = 10; // u16 upvalue index
+    static final byte SET_UPVALUE   = 11; // u16 upvalue index
+    static final byte EQUAL         = 12;
+    static final byte NOT_EQUAL     = 13;
+    static final byte GREATER       = 14;
+    static final byte GREATER_EQUAL = 15;
+    static final byte LESS          = 16;
+    static final byte LESS_EQUAL    = 17;
+    static final byte ADD           = 18;
+    static final byte SUBTRACT      = 19;
+    static final byte MULTIPLY      = 20;
+    static final byte DIVIDE        = 21;
+    static final byte NOT           = 22;
+    static final byte NEGATE        = 23;
+    static final byte PRINT         = 24;
+    static final byte JUMP          = 25; // u16 forward offset
+    static final byte JUMP_IF_FALSE = 26; // u16 forward offset, keeps condition
+    static final byte LOOP          = 27; // u16 backward offset
+    static final byte CALL          = 28; // u8 argument count
+    static final byte CLOSURE       = 29; // u16 constant, then per upvalue: u8 isLocal, u16 index
+    static final byte CLOSE_UPVALUE = 30;
+    static final byte RETURN        = 31;
+    // A break in a function nested in a loop: leaves the function and
+    // exits the innermost loop running a call that leads to it.
+    static final byte BREAK         = 32;
+
+    // How each instruction changes the stack height, used by the compiler
+    // to size frames. CALL and CLOSURE are accounted for separately.
+    static final int[] STACK_EFFECT = {
+            1, 1, 1, 1, -1,   // CONSTANT .. POP
+            1, 0, 1, -1, 0,   // GET_LOCAL .. SET_GLOBAL
+            1, 0,             // GET_UPVALUE, SET_UPVALUE
+            -1, -1, -1, -1, -1, -1, // EQUAL .. LESS_EQUAL
+            -1, -1, -1, -1,   // ADD .. DIVIDE
+            0, 0, -1,         // NOT, NEGATE, PRINT
+            0, 0, 0,          // JUMP, JUMP_IF_FALSE, LOOP
+            0, 1, -1, -1,     // CALL, CLOSURE, CLOSE_UPVALUE, RETURN
+            0                 // BREAK
+    };
+
+    private OpCode() {}
+}
@@ -0,0 +1,275 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Rewrites a resolved program before it runs. Operators whose operands are
+// all literals are folded into a literal, and branches a constant
+// condition can never take are dropped. Anything that would fail at
+// runtime, like dividing by zero, is left for the interpreter to report.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if (result != null) optimized.add(result);
+        }
+        return optimized;
+    }
+
+    // Returns null for a statement that does nothing.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // For a statement that has to stay, like the body of a loop.
+    private Stmt optimizeOrEmpty(Stmt stmt) {
+        Stmt result = optimize(stmt);
+        if (result == null) return new Stmt.Block(new ArrayList<>());
+        return result;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) return null;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        return new Stmt.Return(stmt.keyword, optimize(stmt.value));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Stmt.Var var = new Stmt.Var(stmt.name, optimize(stmt.initializer));
+        var.access = stmt.access;
+        var.slot = stmt.slot;
+        return var;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements.isEmpty()) return null;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.frameSize = stmt.frameSize;
+        return block;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt._if);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(stmt._then);
+            }
+            return stmt._else != null ? optimize(stmt._else) : null;
+        }
+
+        Stmt _else = stmt._else != null ? optimize(stmt._else) : null;
+        return new Stmt.If(condition, optimizeOrEmpty(stmt._then), _else);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal &&
+                !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+
+        return new Stmt.While(condition, optimizeOrEmpty(stmt.body));
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params,
+                optimize(stmt.body));
+        function.access = stmt.access;
+        function.slot = stmt.slot;
+        function.slotCount = stmt.slotCount;
+        function.upvalues = stmt.upvalues;
+        function.capturedParams = stmt.capturedParams;
+        return function;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator.type,
+                    ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // Returned by fold() when the operation would be a runtime error.
+    private static final Object NOT_CONSTANT = new Object();
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        if (operator == TokenType.EQUAL_EQUAL) {
+            return Interpreter.isEqual(left, right);
+        } else if (operator == TokenType.BANG_EQUAL) {
+            return !Interpreter.isEqual(left, right);
+        } else if (operator == TokenType.PLUS) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left + (double)right;
+            } else if (left instanceof String || right instanceof String) {
+                return Interpreter.stringify(left) +
+                        Interpreter.stringify(right);
+            }
+            return NOT_CONSTANT;
+        }
+
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            return NOT_CONSTANT;
+        }
+
+        double a = (double)left;
+        double b = (double)right;
+        switch (operator) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH:
+                if (b == 0.0) return NOT_CONSTANT;
+                return a / b;
+        }
+
+        return NOT_CONSTANT;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            } else if (expr.operator.type == TokenType.MINUS &&
+                    value instanceof Double) {
+                return new Expr.Literal(-(double)value);
+            }
+        }
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr.Assign assign = new Expr.Assign(expr.name, optimize(expr.value));
+        assign.access = expr.access;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // The result is either the left operand itself or the right one.
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            if (expr.operator.type == TokenType.OR) {
+                return truthy ? left : right;
+            } else if (expr.operator.type == TokenType.AND) {
+                return truthy ? right : left;
+            }
+        }
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+
+        return new Expr.Call(optimize(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitAnonFuncExpr(Expr.AnonFunc expr) {
+        Expr.AnonFunc function =
+                new Expr.AnonFunc(expr.params, optimize(expr.body));
+        function.slotCount = expr.slotCount;
+        function.upvalues = expr.upvalues;
+        function.capturedParams = expr.capturedParams;
+        return function;
+    }
+
+    @Override
+    public Expr visitListExpr(Expr.List listexpr) {
+        // Only the last expression's value is kept, so literals before it
+        // can go.
+        List<Expr> exprs = new ArrayList<>();
+        for (int i = 0; i < listexpr.exprs.size(); i++) {
+            Expr expr = optimize(listexpr.exprs.get(i));
+            boolean last = i == listexpr.exprs.size() - 1;
+            if (last || !(expr instanceof Expr.Literal)) exprs.add(expr);
+        }
+
+        if (exprs.size() == 1) return exprs.get(0);
+        return new Expr.List(exprs);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = optimize(expr._if);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(expr._then);
+            }
+            return optimize(expr._else);
+        }
+
+        return new Expr.Ternary(condition, optimize(expr._then),
+                optimize(expr._else));
+    }
+}
@@ -27,13 +27,20 @@ import static com.craftinginterpreters.lox.TokenType.*;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    // Tokens are scanned as they are needed. The grammar never looks more
+    // than one token ahead, so tokens behind the previous one are dropped
+    // from the buffer once it fills up.
+    private final Scanner scanner;
+    private final TokenBuffer tokens;
+    private final ErrorReporter reporter;
     private int current = 0;
 
     private int loopDepth = 0;
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    Parser(Scanner scanner) {
+        this.scanner = scanner;
+        this.tokens = scanner.tokens;
+        this.reporter = scanner.reporter;
     }
 
     List<Stmt> parse() {
@@ -45,7 +52,26 @@ public class Parser {
         return statements;
     }
 
-    private Stmt declaration() {
+    // The incremental front end parses one top-level declaration at a
+    // time and needs to know where each one starts and ends.
+    int nextStart() {
+        typeAt(current);
+        return tokens.start(current);
+    }
+
+    int previousEnd() {
+        return tokens.end(current - 1);
+    }
+
+    int previousLine() {
+        return tokens.line(current - 1);
+    }
+
+    void shiftLines(Token.LineShift shift) {
+        tokens.shift = shift;
+    }
+
+    Stmt declaration() {
         try {
             //don't match anonymous function expression
             if (check(FUN) && !checkNext(LEFT_PAREN)) {
@@ -62,7 +88,8 @@ public class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
@@ -71,8 +98,8 @@ public class Parser {
                     error(peek(), "Can't have more than 255 parameters.");
                 }
 
-                parameters.add(
-                        consume(IDENTIFIER, "Expect parameter name."));
+                consume(IDENTIFIER, "Expect parameter name.");
+                parameters.add(previous());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -83,7 +110,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -377,8 +405,8 @@ public class Parser {
             } while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN,
-                "Expect ')' after arguments.");
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = previous();
 
         return new Expr.Call(callee, paren, arguments);
     }
@@ -396,8 +424,8 @@ public class Parser {
                     error(peek(), "Can't have more than 255 parameters.");
                 }
 
-                parameters.add(
-                        consume(IDENTIFIER, "Expect parameter name."));
+                consume(IDENTIFIER, "Expect parameter name.");
+                parameters.add(previous());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -408,7 +436,9 @@ public class Parser {
     }
 
     private Expr primary() {
-        if (match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
+        if (match(NUMBER, STRING)) {
+            return new Expr.Literal(tokens.literal(current - 1));
+        }
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(NIL)) return new Expr.Literal(null);
@@ -426,13 +456,16 @@ public class Parser {
         throw error(peek(), "Expect expression.");
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -440,9 +473,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -458,6 +491,19 @@ public class Parser {
         }
     }
 
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean match(TokenType first, TokenType second) {
+        return match(first) || match(second);
+    }
+
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
@@ -471,33 +517,46 @@ public class Parser {
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return peekType() == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
-    private boolean isAtEnd() {
-        return peek().type == EOF;
+    boolean isAtEnd() {
+        return peekType() == EOF;
+    }
+
+    private TokenType peekType() {
+        return typeAt(current);
     }
 
     private Token peek() {
-        return tokens.get(current);
+        typeAt(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private boolean checkNext(TokenType type) {
         if (isAtEnd()) return false;
-        if (current + 1 >= tokens.size()) return false;
-        return peekNext().type == type;
+        return typeAt(current + 1) == type;
     }
 
-    private Token peekNext() {
-        return tokens.get(current + 1);
+    private TokenType typeAt(int index) {
+        while (index >= tokens.size()) {
+            // Make room by dropping what's behind the previous token.
+            if (tokens.size() == tokens.capacity() && current > 1) {
+                int dropped = current - 1;
+                tokens.discard(dropped);
+                current -= dropped;
+                index -= dropped;
+            }
+            scanner.scanNext();
+        }
+        return tokens.type(index);
     }
 }
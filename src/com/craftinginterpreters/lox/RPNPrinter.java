@@ -8,7 +8,7 @@ public class RPNPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return RPN(expr.operator.lexeme, expr.left, expr.right);
+        return RPN(expr.operator.lexeme(), expr.left, expr.right);
     }
 
     @Override
@@ -24,7 +24,7 @@ public class RPNPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return RPN(expr.operator.lexeme, expr.right);
+        return RPN(expr.operator.lexeme(), expr.right);
     }
 
     @Override
@@ -39,7 +39,7 @@ public class RPNPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return RPN(expr.name.lexeme);
+        return RPN(expr.name.lexeme());
     }
 
     public String RPN(String name, Expr... exprs) {
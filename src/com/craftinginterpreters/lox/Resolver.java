@@ -1,24 +1,64 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final ErrorReporter reporter;
+    private final Stack<Map<Symbol, Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
-
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    // Top-level code gets a frame of its own for the locals of its blocks.
+    private FunctionScope function = new FunctionScope(null, 0);
 
     private enum FunctionType {
         NONE,
         FUNCTION
     }
 
+    Resolver(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    private static class Local {
+        final int slot;
+        // The Var or Function declaring it, or null for a parameter.
+        final Stmt declaration;
+        boolean defined = false;
+        // Whether a closure refers to it, so that it must live in a cell.
+        boolean captured = false;
+        // References from its own function, patched once the scope ends
+        // and it's known whether the local is captured.
+        final List<Expr> references = new ArrayList<>();
+
+        Local(int slot, Stmt declaration) {
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    // The function whose body is being resolved. Every local in it gets a
+    // slot of its own in the function's frame; slots are reused once the
+    // block declaring them ends.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        // The index in "scopes" of the function's outermost scope.
+        final int base;
+        int nextSlot = 0;
+        int slotCount = 0;
+        // Where each upvalue comes from: a slot in the enclosing function's
+        // frame, or -1 - i for the enclosing function's own upvalue i.
+        final List<Integer> upvalues = new ArrayList<>();
+        final Map<Local, Integer> upvalueIndexes = new HashMap<>();
+
+        FunctionScope(FunctionScope enclosing, int base) {
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
         return null;
@@ -26,13 +66,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitAnonFuncExpr(Expr.AnonFunc expr) {
-        beginScope();
-        for (Token param : expr.params) {
-            declare(param);
-            define(param);
-        }
+        FunctionScope function = beginFunction(expr.params);
         resolve(expr.body);
-        endScope();
+        expr.slotCount = function.slotCount;
+        expr.upvalues = upvalues(function);
+        expr.capturedParams = capturedParams(expr.params);
+        endFunction();
         return null;
     }
 
@@ -104,7 +143,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            reporter.error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
@@ -136,15 +175,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // Function frames are sized when they are made. An outermost block
+        // in the top-level code tells the frame it runs in how large to get,
+        // unless neither it nor the blocks in it declare anything.
+        boolean outermost = function.enclosing == null && scopes.isEmpty();
+        if (outermost) function.slotCount = 0;
         beginScope();
         resolve(stmt.statements);
         endScope();
+        if (outermost) stmt.frameSize = function.slotCount;
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -156,77 +201,179 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+                scopes.peek().containsKey(expr.name.symbol) &&
+                !scopes.peek().get(expr.name.symbol).defined) {
+            reporter.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        int scope = resolveLocal(expr.name);
+        if (scope != -1) {
+            Local local = scopes.get(scope).get(expr.name.symbol);
+            if (scope >= function.base) {
+                local.references.add(expr);
+            } else {
+                expr.access = Access.UPVALUE;
+                expr.slot = upvalue(function, local, scope);
+            }
+        }
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        int scope = resolveLocal(expr.name);
+        if (scope != -1) {
+            Local local = scopes.get(scope).get(expr.name.symbol);
+            if (scope >= function.base) {
+                local.references.add(expr);
+            } else {
+                expr.access = Access.UPVALUE;
+                expr.slot = upvalue(function, local, scope);
+            }
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
 
-    private void resolveFunction(Stmt.Function function, FunctionType type) {
+    private void resolveFunction(Stmt.Function stmt, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
+        FunctionScope function = beginFunction(stmt.params);
+        resolve(stmt.body);
+        // Lets calls size the frame for every local the body declares.
+        stmt.slotCount = function.slotCount;
+        stmt.upvalues = upvalues(function);
+        stmt.capturedParams = capturedParams(stmt.params);
+        endFunction();
+        currentFunction = enclosingFunction;
+    }
+
+    private FunctionScope beginFunction(List<Token> params) {
+        function = new FunctionScope(function, scopes.size());
         beginScope();
-        for (Token param : function.params) {
-            declare(param);
+        for (Token param : params) {
+            declare(param, null);
             define(param);
         }
-        resolve(function.body);
+        return function;
+    }
+
+    private void endFunction() {
         endScope();
-        currentFunction = enclosingFunction;
+        function = function.enclosing;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private static int[] upvalues(FunctionScope function) {
+        int[] upvalues = new int[function.upvalues.size()];
+        for (int i = 0; i < upvalues.length; i++) {
+            upvalues[i] = function.upvalues.get(i);
+        }
+        return upvalues;
+    }
+
+    // The slots of the parameters closures capture, which calls move into
+    // cells before running the body.
+    private int[] capturedParams(List<Token> params) {
+        Map<Symbol, Local> scope = scopes.peek();
+        return params.stream()
+                .map(param -> scope.get(param.symbol))
+                .filter(local -> local != null && local.captured)
+                .mapToInt(local -> local.slot)
+                .distinct()
+                .toArray();
+    }
+
+    // Returns the index among the function's upvalues of a local declared
+    // in the scope at the given index, adding it to the function and to
+    // every function between it and the one declaring the local.
+    private int upvalue(FunctionScope function, Local local, int scope) {
+        Integer index = function.upvalueIndexes.get(local);
+        if (index != null) return index;
+
+        int source;
+        if (scope >= function.enclosing.base) {
+            local.captured = true;
+            source = local.slot;
+        } else {
+            source = -1 - upvalue(function.enclosing, local, scope);
+        }
+
+        function.upvalues.add(source);
+        function.upvalueIndexes.put(local, function.upvalues.size() - 1);
+        return function.upvalues.size() - 1;
+    }
+
+    // Returns the index of the innermost scope declaring the name, or -1
+    // if it isn't found and must be a global.
+    private int resolveLocal(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            if (scopes.get(i).containsKey(name.symbol)) {
+                return i;
             }
         }
+
+        return -1;
     }
 
-    private void declare(Token name) {
+    private void declare(Token name, Stmt declaration) {
         if (scopes.isEmpty()) return;
         //TODO: Redeclaration check
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+        Map<Symbol, Local> scope = scopes.peek();
+        if (scope.containsKey(name.symbol)) {
+            reporter.error(name,
                     "Already a variable with this name in this scope.");
+            return;
         }
 
-        scope.put(name.lexeme, false);
+        Local local = new Local(function.nextSlot++, declaration);
+        function.slotCount = Math.max(function.slotCount, function.nextSlot);
+        scope.put(name.symbol, local);
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.symbol).defined = true;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<Symbol, Local>());
     }
 
     private void endScope() {
-        scopes.pop();
+        Map<Symbol, Local> scope = scopes.pop();
+        for (Local local : scope.values()) {
+            Access access = local.captured ? Access.CELL : Access.LOCAL;
+            if (local.declaration instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)local.declaration;
+                var.access = access;
+                var.slot = local.slot;
+            } else if (local.declaration instanceof Stmt.Function) {
+                Stmt.Function declaration = (Stmt.Function)local.declaration;
+                declaration.access = access;
+                declaration.slot = local.slot;
+            }
+            for (Expr reference : local.references) {
+                if (reference instanceof Expr.Variable) {
+                    ((Expr.Variable)reference).access = access;
+                    ((Expr.Variable)reference).slot = local.slot;
+                } else {
+                    ((Expr.Assign)reference).access = access;
+                    ((Expr.Assign)reference).slot = local.slot;
+                }
+            }
+        }
+        function.nextSlot -= scope.size();
     }
 
     void resolve(List<Stmt> statements) {
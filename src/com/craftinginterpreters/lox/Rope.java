@@ -0,0 +1,64 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+
+// A Lox string made by concatenation. It keeps the two pieces and only
+// copies them into one String the first time the text is needed, such as
+// when it is printed or compared, so building a string piece by piece
+// takes linear time instead of quadratic. Every other Lox string is a
+// plain java.lang.String.
+final class Rope {
+    // Joining strings this short is cheaper than keeping them apart.
+    private static final int SHORT = 64;
+
+    // Each piece is a String or another Rope. Both are dropped once the
+    // rope has been flattened.
+    private Object left;
+    private Object right;
+    private final int length;
+    private String flat = null;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    // Both operands must be Lox strings.
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if (length <= SHORT) return left.toString() + right.toString();
+        return new Rope(left, right, length);
+    }
+
+    private static int length(Object string) {
+        if (string instanceof Rope) return ((Rope)string).length;
+        return ((String)string).length();
+    }
+
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+
+        // Walks the pieces with an explicit stack. A string built up in a
+        // loop is a very deep tree.
+        StringBuilder builder = new StringBuilder(length);
+        ArrayDeque<Object> pieces = new ArrayDeque<>();
+        pieces.push(this);
+        while (!pieces.isEmpty()) {
+            Object piece = pieces.pop();
+            if (piece instanceof Rope && ((Rope)piece).flat == null) {
+                Rope rope = (Rope)piece;
+                pieces.push(rope.right);
+                pieces.push(rope.left);
+            } else {
+                builder.append(piece.toString());
+            }
+        }
+
+        flat = builder.toString();
+        left = null;
+        right = null;
+        return flat;
+    }
+}
@@ -2,9 +2,17 @@ package com.craftinginterpreters.lox;
 
 public class RuntimeError extends RuntimeException {
     final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line();
+    }
+
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 }
@@ -1,55 +1,68 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
+// Scans the raw bytes of the source one token at a time as the parser
+// asks for them. Tokens go into a TokenBuffer that only records where each
+// lexeme is, so nothing is copied out of the source except string and
+// number literals. Lox's syntax is all ASCII, so any encoding
+// that agrees with ASCII can be scanned byte by byte; only the contents
+// of strings are decoded.
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final int length;
+    final ErrorReporter reporter;
+    final TokenBuffer tokens;
     private int start = 0;
-    private int current = 0;
-    private int line = 1;
-
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-        keywords.put("break",  BREAK);
-    }
-
-    Scanner(String source) {
+    private int current;
+    private int line;
+
+    private static final boolean UTF_8 =
+            Charset.defaultCharset().equals(StandardCharsets.UTF_8);
+    // Identifiers this scanner has already seen, found by hashing their
+    // bytes in place, so a repeated name allocates nothing.
+    private Symbol[] symbols = new Symbol[64];
+    private int symbolCount = 0;
+
+    Scanner(String source, ErrorReporter reporter) {
+        this(ByteBuffer.wrap(source.getBytes(Charset.defaultCharset())),
+                reporter);
+    }
+
+    Scanner(ByteBuffer source, ErrorReporter reporter) {
+        this(source, 0, 1, reporter);
+    }
+
+    // Starts scanning partway into the source, which must be at a point
+    // between two tokens.
+    Scanner(ByteBuffer source, int offset, int line,
+            ErrorReporter reporter) {
         this.source = source;
+        this.length = source.limit();
+        this.reporter = reporter;
+        this.tokens = new TokenBuffer(source);
+        this.current = offset;
+        this.line = line;
     }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // Adds the next token to the end of the buffer. Once the source runs
+    // out, every call adds an EOF token.
+    void scanNext() {
+        int size = tokens.size();
+        while (tokens.size() == size) {
+            if (isAtEnd()) {
+                tokens.add(EOF, current, 0, null, line);
+                return;
+            }
+
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
-
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
     }
 
     private void scanToken() {
@@ -106,7 +119,12 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    reporter.error(line, "Unexpected character.");
+
+                    // Report a multi-byte UTF-8 character only once.
+                    if (UTF_8) {
+                        while ((peek() & 0xC0) == 0x80) advance();
+                    }
                 }
                 break;
         }
@@ -123,17 +141,121 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, numberValue());
+    }
+
+    private double numberValue() {
+        // Integers short enough to be exact are converted directly, which
+        // spares decoding the lexeme.
+        if (current - start <= 15) {
+            double value = 0;
+            int i = start;
+            while (i < current && source.get(i) != '.') {
+                value = value * 10 + (source.get(i++) - '0');
+            }
+            if (i == current) return value;
+        }
+
+        return Double.parseDouble(text(start, current));
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        TokenType type = keyword();
+        if (type == IDENTIFIER) {
+            tokens.add(IDENTIFIER, start, current - start, symbol(), line);
+        } else {
+            addToken(type);
+        }
+    }
+
+    // Recognizes keywords with a trie branching on their leading letters.
+    private TokenType keyword() {
+        switch (source.get(start)) {
+            case 'a': return keywordRest(1, "nd", AND);
+            case 'b': return keywordRest(1, "reak", BREAK);
+            case 'c': return keywordRest(1, "lass", CLASS);
+            case 'e': return keywordRest(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'a': return keywordRest(2, "lse", FALSE);
+                        case 'o': return keywordRest(2, "r", FOR);
+                        case 'u': return keywordRest(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return keywordRest(1, "f", IF);
+            case 'n': return keywordRest(1, "il", NIL);
+            case 'o': return keywordRest(1, "r", OR);
+            case 'p': return keywordRest(1, "rint", PRINT);
+            case 'r': return keywordRest(1, "eturn", RETURN);
+            case 's': return keywordRest(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'h': return keywordRest(2, "is", THIS);
+                        case 'r': return keywordRest(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return keywordRest(1, "ar", VAR);
+            case 'w': return keywordRest(1, "hile", WHILE);
+        }
+
+        return IDENTIFIER;
+    }
+
+    private TokenType keywordRest(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.get(start + offset + i) != rest.charAt(i)) {
+                return IDENTIFIER;
+            }
+        }
+
+        return type;
+    }
+
+    private Symbol symbol() {
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+
+        int mask = symbols.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (Symbol symbol = symbols[index]; symbol != null;
+             symbol = symbols[index]) {
+            if (symbol.hash == hash && isLexeme(symbol.name)) return symbol;
+            index = (index + 1) & mask;
+        }
+
+        Symbol symbol = Symbol.intern(text(start, current));
+        symbols[index] = symbol;
+        if (++symbolCount * 2 > symbols.length) growSymbols();
+        return symbol;
+    }
+
+    private boolean isLexeme(String name) {
+        if (name.length() != current - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (source.get(start + i) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void growSymbols() {
+        Symbol[] old = symbols;
+        symbols = new Symbol[old.length * 2];
+        int mask = symbols.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol == null) continue;
+            int index = (symbol.hash ^ (symbol.hash >>> 16)) & mask;
+            while (symbols[index] != null) index = (index + 1) & mask;
+            symbols[index] = symbol;
+        }
     }
 
     private void string() {
@@ -143,7 +265,7 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
 
@@ -151,7 +273,7 @@ public class Scanner {
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = text(start + 1, current - 1);
         addToken(STRING, value);
     }
 
@@ -162,7 +284,7 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated multiline comment.");
+            reporter.error(line, "Unterminated multiline comment.");
             return;
         }
 
@@ -173,7 +295,7 @@ public class Scanner {
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source.get(current) != expected) return false;
 
         current++;
         return true;
@@ -181,12 +303,12 @@ public class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return (char)(source.get(current) & 0xff);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (current + 1 >= length) return '\0';
+        return (char)(source.get(current + 1) & 0xff);
     }
 
     private boolean isAlpha(char c) {
@@ -204,11 +326,11 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return (char)(source.get(current++) & 0xff);
     }
 
     private void addToken(TokenType type) {
@@ -216,7 +338,12 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, literal, line);
+    }
+
+    private String text(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return new String(bytes, Charset.defaultCharset());
     }
 }
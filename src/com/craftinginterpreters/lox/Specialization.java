@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// The operand types an operator node has seen so far. A node starts out
+// UNINITIALIZED, settles on the types of its first evaluation, and drops
+// to GENERIC for good the first time those types don't hold.
+enum Specialization {
+    UNINITIALIZED,
+    NUMBER,
+    STRING,
+    BOOLEAN,
+    GENERIC
+}
@@ -65,6 +65,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    Access access = Access.GLOBAL;
+    int slot = -1;
   }
   static class Block extends Stmt {
     Block(java.util.List<Stmt> statements) {
@@ -77,6 +80,8 @@ abstract class Stmt {
     }
 
     final java.util.List<Stmt> statements;
+
+    int frameSize = 0;
   }
   static class If extends Stmt {
     If(Expr _if, Stmt _then, Stmt _else) {
@@ -107,6 +112,8 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    JitProfile profile = new JitProfile();
   }
   static class Break extends Stmt {
     Break() {
@@ -133,6 +140,13 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    Access access = Access.GLOBAL;
+    int slot = -1;
+    int slotCount = 0;
+    int[] upvalues = {};
+    int[] capturedParams = {};
+    JitProfile profile = new JitProfile();
   }
 
   abstract <R> R accept(Visitor<R> visitor);
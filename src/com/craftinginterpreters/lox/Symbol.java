@@ -0,0 +1,72 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An interned identifier. There is exactly one Symbol for each distinct
+// name while anything refers to it, so symbols are compared by identity.
+// The table only holds them weakly: once no token, tree or table of
+// globals uses a name, its symbol goes away, and a process that scans
+// many programs doesn't keep every identifier it ever saw.
+final class Symbol {
+    private static final ConcurrentHashMap<String, Entry> table =
+            new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Symbol> collected =
+            new ReferenceQueue<>();
+
+    private static final class Entry extends WeakReference<Symbol> {
+        final String name;
+
+        Entry(Symbol symbol) {
+            super(symbol, collected);
+            this.name = symbol.name;
+        }
+    }
+
+    final String name;
+    // The name's String hash, which is also the hash of its ASCII bytes.
+    final int hash;
+
+    private Symbol(String name) {
+        this.name = name;
+        this.hash = name.hashCode();
+    }
+
+    static Symbol intern(String name) {
+        Entry entry = table.get(name);
+        Symbol symbol = entry == null ? null : entry.get();
+        if (symbol != null) return symbol;
+
+        expunge();
+        for (;;) {
+            Symbol fresh = new Symbol(name);
+            Entry newEntry = new Entry(fresh);
+            entry = table.putIfAbsent(name, newEntry);
+            if (entry == null) return fresh;
+
+            symbol = entry.get();
+            if (symbol != null) return symbol;
+            // The entry there was for a symbol already collected.
+            if (table.replace(name, entry, newEntry)) return fresh;
+        }
+    }
+
+    // Drops the entries of symbols that have been collected.
+    private static void expunge() {
+        Entry entry;
+        while ((entry = (Entry)collected.poll()) != null) {
+            table.remove(entry.name, entry);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,19 +1,85 @@
 package com.craftinginterpreters.lox;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 public class Token {
+    // Shared by the tokens of one top-level declaration. When an edit above
+    // the declaration adds or removes lines, the incremental front end
+    // moves them all at once instead of parsing the declaration again.
+    static final class LineShift {
+        int lines = 0;
+    }
+
     final TokenType type;
-    final String lexeme;
     final Object literal;
-    final int line;
+    private final int line;
+    private final LineShift shift;
+    // The interned name of an identifier, null for every other token.
+    final Symbol symbol;
+    // Where the lexeme is in the source. Its text is only decoded the first
+    // time something asks for it.
+    final int start;
+    final int length;
+    private final ByteBuffer source;
+    private String lexeme;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
+        this.literal = literal;
+        this.line = line;
+        this.shift = null;
+        this.symbol = type == TokenType.IDENTIFIER
+                ? Symbol.intern(lexeme) : null;
+        this.start = 0;
+        this.length = lexeme.length();
+        this.source = null;
         this.lexeme = lexeme;
+    }
+
+    // A token whose lexeme has already been copied out of the source.
+    Token(TokenType type, String lexeme, Object literal, Symbol symbol,
+          int line, LineShift shift) {
+        this.type = type;
         this.literal = literal;
         this.line = line;
+        this.shift = shift;
+        this.symbol = symbol;
+        this.start = 0;
+        this.length = lexeme.length();
+        this.source = null;
+        this.lexeme = lexeme;
+    }
+
+    Token(TokenType type, ByteBuffer source, int start, int length,
+          Object literal, Symbol symbol, int line, LineShift shift) {
+        this.type = type;
+        this.literal = literal;
+        this.line = line;
+        this.shift = shift;
+        this.symbol = symbol;
+        this.start = start;
+        this.length = length;
+        this.source = source;
+        this.lexeme = null;
+    }
+
+    int line() {
+        return shift == null ? line : line + shift.lines;
+    }
+
+    String lexeme() {
+        if (lexeme == null) {
+            if (symbol != null) return symbol.name;
+
+            byte[] bytes = new byte[length];
+            source.get(start, bytes);
+            lexeme = new String(bytes, Charset.defaultCharset());
+        }
+        return lexeme;
     }
 
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
 }
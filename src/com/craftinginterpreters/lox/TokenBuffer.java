@@ -0,0 +1,116 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Scanned tokens stored as parallel arrays instead of one object each. The
+// parser works from the type column and only turns a token into a Token
+// when it keeps one in the AST or reports an error at it.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ByteBuffer source;
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    // The side table: a literal's value, or an identifier's Symbol.
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int count = 0;
+    // Given to the tokens made from here on. Null outside incremental
+    // parsing.
+    Token.LineShift shift = null;
+
+    TokenBuffer(ByteBuffer source) {
+        this.source = source;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int capacity() {
+        return types.length;
+    }
+
+    void add(TokenType type, int start, int length, Object value, int line) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        types[count] = (byte)type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        values[count] = value;
+        count++;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    Object literal(int index) {
+        return values[index];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int end(int index) {
+        return starts[index] + lengths[index];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    Token token(int index) {
+        TokenType type = type(index);
+        Object value = values[index];
+        if (shift != null) {
+            // The incremental front end keeps tokens across versions of the
+            // source, so they can't refer back into this one.
+            if (type == TokenType.IDENTIFIER) {
+                Symbol symbol = (Symbol)value;
+                return new Token(type, symbol.name, null, symbol,
+                        lines[index], shift);
+            }
+            return new Token(type, lexeme(index), value, null,
+                    lines[index], shift);
+        }
+
+        if (type == TokenType.IDENTIFIER) {
+            return new Token(type, source, starts[index], lengths[index],
+                    null, (Symbol)value, lines[index], shift);
+        }
+        return new Token(type, source, starts[index], lengths[index],
+                value, null, lines[index], shift);
+    }
+
+    private String lexeme(int index) {
+        byte[] bytes = new byte[lengths[index]];
+        source.get(starts[index], bytes);
+        return new String(bytes, Charset.defaultCharset());
+    }
+
+    // Drops the first n tokens and moves the rest to the front.
+    void discard(int n) {
+        int remaining = count - n;
+        System.arraycopy(types, n, types, 0, remaining);
+        System.arraycopy(starts, n, starts, 0, remaining);
+        System.arraycopy(lengths, n, lengths, 0, remaining);
+        System.arraycopy(lines, n, lines, 0, remaining);
+        System.arraycopy(values, n, values, 0, remaining);
+        Arrays.fill(values, remaining, count, null);
+        count = remaining;
+    }
+}
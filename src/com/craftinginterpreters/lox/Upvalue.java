@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox;
+
+// A variable captured by a closure. While the variable is still live on
+// the VM stack the upvalue points at its slot; once the slot goes away
+// the value is moved into the upvalue itself.
+class Upvalue {
+    int slot;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int slot, Upvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+
+    boolean isOpen() {
+        return slot != -1;
+    }
+}
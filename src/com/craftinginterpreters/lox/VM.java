@@ -0,0 +1,454 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Stack-based virtual machine that runs chunks produced by Compiler. It is
+// an alternative to the tree-walking Interpreter and must behave the same
+// way on every program, including its runtime error messages.
+class VM {
+    private static final Object UNDEFINED = new Object();
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    // The compiler reports errors here as well.
+    final ErrorReporter reporter;
+    private final PrintWriter out;
+    private final char[] digits = new char[Numbers.MAX_LENGTH];
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+
+    // Globals are bound to an index when a script is compiled, so the
+    // table of names persists across REPL lines.
+    private final Map<Symbol, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globalValues = new Object[64];
+
+    VM(ErrorReporter reporter, PrintWriter out) {
+        this.reporter = reporter;
+        this.out = out;
+        defineNative("clock", new LoxCallable() {
+            @Override
+            public int arity() { return 0; }
+
+            @Override
+            public Object call(Interpreter interpreter,
+                               List<Object> arguments) {
+                return (double)System.currentTimeMillis() / 1000.0;
+            }
+
+            @Override
+            public String toString() { return "<native fn>"; }
+        });
+    }
+
+    int globalSlot(Symbol name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        slot = globalSlots.size();
+        if (slot == globalValues.length) {
+            globalNames = Arrays.copyOf(globalNames, slot * 2);
+            globalValues = Arrays.copyOf(globalValues, slot * 2);
+        }
+        globalNames[slot] = name.name;
+        globalValues[slot] = UNDEFINED;
+        globalSlots.put(name, slot);
+        return slot;
+    }
+
+    private void defineNative(String name, LoxCallable function) {
+        globalValues[globalSlot(Symbol.intern(name))] = function;
+    }
+
+    void interpret(CompiledFunction script) {
+        Closure closure = new Closure(script);
+        push(closure);
+        try {
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            out.flush();
+            reporter.runtimeError(error);
+        } finally {
+            out.flush();
+
+            // Popped slots aren't cleared as we go, so drop whatever the
+            // script left behind before the next run.
+            Arrays.fill(stack, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run() {
+        // The hot state lives in locals and is written back to the fields
+        // whenever control leaves the loop.
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Object[] stack = this.stack;
+        int ip = frame.ip;
+        int base = frame.base;
+        int sp = this.sp;
+
+        for (;;) {
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case NIL: stack[sp++] = null; break;
+                case TRUE: stack[sp++] = Boolean.TRUE; break;
+                case FALSE: stack[sp++] = Boolean.FALSE; break;
+                case POP: sp--; break;
+                case GET_LOCAL:
+                    stack[sp++] = stack[base + readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case SET_LOCAL:
+                    stack[base + readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case GET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    Object value = globalValues[slot];
+                    if (value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" +
+                                globalNames[slot] + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case DEFINE_GLOBAL:
+                    globalValues[readShort(code, ip)] = stack[--sp];
+                    ip += 2;
+                    break;
+                case SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    if (globalValues[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Assigning to undefined variable '" +
+                                globalNames[slot] + "'.");
+                    }
+                    globalValues[slot] = stack[sp - 1];
+                    break;
+                }
+                case GET_UPVALUE: {
+                    Upvalue upvalue =
+                            frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    stack[sp++] = upvalue.isOpen()
+                            ? stack[upvalue.slot] : upvalue.closed;
+                    break;
+                }
+                case SET_UPVALUE: {
+                    Upvalue upvalue =
+                            frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if (upvalue.isOpen()) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (double)a + (double)b;
+                    } else if (Interpreter.isString(a) &&
+                            Interpreter.isString(b)) {
+                        stack[sp - 1] = Rope.concat(a, b);
+                    } else if (Interpreter.isString(a)) {
+                        stack[sp - 1] =
+                                Rope.concat(a, Interpreter.stringify(b));
+                    } else if (Interpreter.isString(b)) {
+                        stack[sp - 1] =
+                                Rope.concat(Interpreter.stringify(a), b);
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    double left = (double)a;
+                    double right = (double)b;
+                    switch (instruction) {
+                        case GREATER: stack[sp - 1] = left > right; break;
+                        case GREATER_EQUAL: stack[sp - 1] = left >= right; break;
+                        case LESS: stack[sp - 1] = left < right; break;
+                        case LESS_EQUAL: stack[sp - 1] = left <= right; break;
+                        case SUBTRACT: stack[sp - 1] = left - right; break;
+                        case MULTIPLY: stack[sp - 1] = left * right; break;
+                        case DIVIDE:
+                            if (right == 0.0) {
+                                frame.ip = ip;
+                                throw error("Can not divide by zero");
+                            }
+                            stack[sp - 1] = left / right;
+                            break;
+                    }
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double)value;
+                    break;
+                }
+                case PRINT: {
+                    Object value = stack[--sp];
+                    if (value instanceof Double) {
+                        Numbers.println(out, (double)value, digits);
+                    } else {
+                        out.println(Interpreter.stringify(value));
+                    }
+                    break;
+                }
+                case JUMP:
+                    ip += 2 + readShort(code, ip);
+                    break;
+                case JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += 2 + readShort(code, ip);
+                    }
+                    break;
+                case LOOP:
+                    ip += 2 - readShort(code, ip);
+                    break;
+                case CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    Object callee = stack[sp - 1 - argCount];
+                    if (callee instanceof Closure) {
+                        call((Closure)callee, argCount);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        stack = this.stack;
+                        ip = 0;
+                        base = frame.base;
+                    } else {
+                        callNative(callee, argCount);
+                        sp = this.sp;
+                    }
+                    break;
+                }
+                case CLOSURE: {
+                    CompiledFunction function =
+                            (CompiledFunction)constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure closure = new Closure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = readShort(code, ip);
+                        ip += 2;
+                        closure.upvalues[i] = isLocal
+                                ? captureUpvalue(base + index)
+                                : frame.closure.upvalues[index];
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case BREAK: {
+                    frame.ip = ip;
+                    frame = breakOut();
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    sp = this.sp;
+                    break;
+                }
+                case RETURN: {
+                    Object result = stack[--sp];
+                    if (openUpvalues != null) closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        this.sp = 0;
+                        return;
+                    }
+
+                    // Drop the callee along with its arguments and locals.
+                    sp = base;
+                    stack[sp++] = result;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void call(Closure closure, int argCount) {
+        CompiledFunction function = closure.function;
+        if (argCount != function.arity) {
+            throw error("Expected " + function.arity +
+                    " arguments but got " + argCount + ".");
+        }
+
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+
+        if (frame.base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack,
+                    Math.max(stack.length * 2, frame.base + function.maxStack));
+        }
+    }
+
+    private void callNative(Object callee, int argCount) {
+        if (!(callee instanceof LoxCallable)) {
+            throw error("Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        if (argCount != function.arity()) {
+            throw error("Expected " + function.arity() +
+                    " arguments but got " + argCount + ".");
+        }
+
+        List<Object> arguments =
+                Arrays.asList(Arrays.copyOfRange(stack, sp - argCount, sp));
+        Object result = function.call(null, arguments);
+        Arrays.fill(stack, sp - argCount - 1, sp, null);
+        sp -= argCount + 1;
+        push(result);
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        Upvalue created = new Upvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    // Returns from frames until one is running a call from the body of a
+    // loop, and exits that loop. With no such loop, the break unwinds out
+    // of the program, as it does in the tree-walker.
+    private CallFrame breakOut() {
+        for (;;) {
+            CallFrame frame = frames[frameCount - 1];
+            if (openUpvalues != null) closeUpvalues(frame.base);
+            frameCount--;
+            if (frameCount == 0) throw new Break();
+
+            CallFrame caller = frames[frameCount - 1];
+            Chunk chunk = caller.closure.function.chunk;
+            // The caller's ip is just past its CALL instruction.
+            int loop = chunk.loopAt(caller.ip - 1);
+            if (loop == -1) continue;
+
+            int top = caller.base + chunk.loops[loop + 3];
+            if (openUpvalues != null) closeUpvalues(top);
+            sp = top;
+            caller.ip = chunk.loops[loop + 2];
+            return caller;
+        }
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void push(Object value) {
+        stack[sp++] = value;
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        // The ip has already moved past the failing instruction.
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+}
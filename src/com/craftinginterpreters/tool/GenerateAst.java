@@ -13,15 +13,23 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Binary   : Expr left, Token operator, Expr right",
+                "Binary   : Expr left, Token operator, Expr right" +
+                        " : Specialization specialization = Specialization.UNINITIALIZED",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name",
-                "Assign   : Token name, Expr value",
+                "Unary    : Token operator, Expr right" +
+                        " : Specialization specialization = Specialization.UNINITIALIZED",
+                "Variable : Token name" +
+                        " : Access access = Access.GLOBAL, int slot = -1",
+                "Assign   : Token name, Expr value" +
+                        " : Access access = Access.GLOBAL, int slot = -1",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, java.util.List<Expr> arguments",
-                "AnonFunc : List<Token> params, List<Stmt> body",
+                "Call     : Expr callee, Token paren, java.util.List<Expr> arguments" +
+                        " : Stmt.Function cachedTarget = null",
+                "AnonFunc : java.util.List<Token> params, java.util.List<Stmt> body" +
+                        " : int slotCount = 0, int[] upvalues = {}," +
+                        " int[] capturedParams = {}," +
+                        " JitProfile profile = new JitProfile()",
                 "List     : java.util.List<Expr> exprs",
                 "Ternary  : Expr _if, Expr _then, Expr _else"
         ));
@@ -29,13 +37,20 @@ public class GenerateAst {
                 "Expression : Expr expression",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "Block      : java.util.List<Stmt> statements",
+                "Var        : Token name, Expr initializer" +
+                            " : Access access = Access.GLOBAL, int slot = -1",
+                "Block      : java.util.List<Stmt> statements" +
+                            " : int frameSize = 0",
                 "If         : Expr _if, Stmt _then, Stmt _else",
-                "While      : Expr condition, Stmt body",
+                "While      : Expr condition, Stmt body" +
+                            " : JitProfile profile = new JitProfile()",
                 "Break      :   ",
                 "Function   : Token name, List<Token> params," +
-                            " List<Stmt> body"
+                            " List<Stmt> body" +
+                            " : Access access = Access.GLOBAL, int slot = -1," +
+                            " int slotCount = 0, int[] upvalues = {}," +
+                            " int[] capturedParams = {}," +
+                            " JitProfile profile = new JitProfile()"
         ));
     }
 
@@ -57,7 +72,11 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // An optional third section lists mutable fields that later
+            // passes fill in, along with their initial values.
+            String state = type.split(":").length > 2
+                    ? type.split(":")[2].trim() : "";
+            defineType(writer, baseName, className, fields, state);
         }
 
         // The base accept() method.
@@ -83,7 +102,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String stateList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -118,6 +137,13 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (!stateList.isEmpty()) {
+            writer.println();
+            for (String field : stateList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }
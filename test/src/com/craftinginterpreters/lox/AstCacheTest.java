@@ -0,0 +1,159 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AstCacheTest {
+    // Uses every kind of node, and fails at runtime on a known line.
+    private static final String SOURCE = String.join("\n",
+            "var greeting = \"hi\";",
+            "fun counter() {",
+            "  var n = 0;",
+            "  return fun () { n = n + 1; return n; };",
+            "}",
+            "var c = counter();",
+            "c();",
+            "print c();",
+            "var i = 0;",
+            "while (true) { i = i + 1; if (i > 3) { break; } }",
+            "print i > 3 ? greeting + \" there\" : \"no\";",
+            "print (1, 2, i);",
+            "print -i;",
+            "print !nil;",
+            "print nil or \"right\";",
+            "{ var local = 2; print local * 1.5; }",
+            "fun fail(x) {",
+            "  return x / (i - 4);",
+            "}",
+            "print fail(1);",
+            "print \"unreachable\";",
+            "");
+
+    @TempDir
+    Path directory;
+    private String cacheDir;
+
+    @BeforeEach
+    void useTemporaryCacheDir() {
+        cacheDir = System.getProperty("lox.cacheDir");
+        System.setProperty("lox.cacheDir",
+                directory.resolve("cache").toString());
+    }
+
+    @AfterEach
+    void restoreCacheDir() {
+        if (cacheDir == null) {
+            System.clearProperty("lox.cacheDir");
+        } else {
+            System.setProperty("lox.cacheDir", cacheDir);
+        }
+    }
+
+    @Test
+    void loadedTreeRunsLikeAFreshOne() {
+        Path cache = store(SOURCE);
+        assertTrue(cache.startsWith(directory.resolve("cache")));
+        assertTrue(Files.isRegularFile(cache));
+
+        for (boolean useVm : new boolean[] {false, true}) {
+            List<Stmt> loaded = AstCache.load(cache, hash(SOURCE));
+            assertNotNull(loaded);
+
+            String expected = run(frontEnd(SOURCE), useVm);
+            assertTrue(expected.endsWith(
+                    "Can not divide by zero\n[line 18]" +
+                            System.lineSeparator()), expected);
+            assertEquals(expected, run(loaded, useVm));
+        }
+    }
+
+    @Test
+    void changedSourceMisses() {
+        Path cache = store(SOURCE);
+        assertNull(AstCache.load(cache, hash(SOURCE + "print 1;\n")));
+        assertNotNull(AstCache.load(cache, hash(SOURCE)));
+    }
+
+    @Test
+    void otherVersionMisses() throws IOException {
+        Path cache = store(SOURCE);
+        byte[] bytes = Files.readAllBytes(cache);
+        // The version follows the four bytes of the magic number.
+        ByteBuffer.wrap(bytes).putInt(4, ByteBuffer.wrap(bytes).getInt(4) + 1);
+        Files.write(cache, bytes);
+
+        assertNull(AstCache.load(cache, hash(SOURCE)));
+    }
+
+    @Test
+    void truncatedCacheMisses() throws IOException {
+        Path cache = store(SOURCE);
+        byte[] bytes = Files.readAllBytes(cache);
+        for (int length = 0; length < bytes.length; length++) {
+            Files.write(cache, Arrays.copyOf(bytes, length));
+            assertNull(AstCache.load(cache, hash(SOURCE)),
+                    "cut to " + length + " bytes");
+        }
+    }
+
+    @Test
+    void corruptCacheMisses() throws IOException {
+        Path cache = store(SOURCE);
+        byte[] bytes = Files.readAllBytes(cache);
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x10;
+            Files.write(cache, corrupt);
+            assertNull(AstCache.load(cache, hash(SOURCE)),
+                    "byte " + i + " changed");
+        }
+
+        Files.write(cache, Arrays.copyOf(bytes, bytes.length + 1));
+        assertNull(AstCache.load(cache, hash(SOURCE)), "byte added");
+    }
+
+    private Path store(String source) {
+        Path cache = AstCache.pathFor(directory.resolve("script.lox"));
+        AstCache.store(cache, hash(source), frontEnd(source));
+        return cache;
+    }
+
+    private static byte[] hash(String source) {
+        return AstCache.hash(ByteBuffer.wrap(
+                source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<Stmt> frontEnd(String source) {
+        return LoxEngine.frontEnd(ByteBuffer.wrap(
+                source.getBytes(StandardCharsets.UTF_8)),
+                new ErrorReporter(System.err));
+    }
+
+    // Returns what the program printed, followed by its runtime error.
+    private static String run(List<Stmt> statements, boolean useVm) {
+        StringWriter out = new StringWriter();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        new LoxEngine(out, new ErrorReporter(
+                new PrintStream(err, true, StandardCharsets.UTF_8)), useVm)
+                .execute(statements);
+        return out + err.toString(StandardCharsets.UTF_8);
+    }
+}
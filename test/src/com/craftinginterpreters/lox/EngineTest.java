@@ -0,0 +1,161 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Engines running side by side must not see each other's globals, even
+// when they run the same tree.
+class EngineTest {
+    private static final int ROUNDS = 200;
+    private static final int SHARED_RUNS = 20;
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void concurrentEnginesKeepTheirGlobals(boolean useVm) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> a = executor.submit(engine("a", "b", useVm, start));
+            Future<String> b = executor.submit(engine("b", "a", useVm, start));
+            assertEquals(expected(), a.get());
+            assertEquals(expected(), b.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Runs one tree on two engines that numbered their globals differently.
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void sharedTreeFindsEachEnginesGlobals(boolean useVm) {
+        StringWriter first = new StringWriter();
+        StringWriter second = new StringWriter();
+        LoxEngine one = new LoxEngine(first, System.err, useVm);
+        LoxEngine two = new LoxEngine(second, System.err, useVm);
+        assertEquals(LoxEngine.Result.OK, one.eval("var x = 1; var y = 2;"));
+        assertEquals(LoxEngine.Result.OK, two.eval("var y = 3; var x = 4;"));
+
+        ErrorReporter reporter = new ErrorReporter(System.err);
+        List<Stmt> statements = LoxEngine.frontEnd(ByteBuffer.wrap(
+                "print y; y = y + x; print y;"
+                        .getBytes(StandardCharsets.UTF_8)), reporter);
+        assertEquals(LoxEngine.Result.OK, one.execute(statements));
+        assertEquals(LoxEngine.Result.OK, two.execute(statements));
+        assertEquals(lines("2", "3"), first.toString());
+        assertEquals(lines("3", "7"), second.toString());
+    }
+
+    // Several engines run one tree at the same time, often enough for its
+    // loop and functions to get hot, and with operand types that change
+    // partway through, so the hints in the tree keep being rewritten.
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void concurrentEnginesShareATree(boolean useVm) throws Exception {
+        String source = String.join("\n",
+                "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }",
+                "fun add(a, b) { return a + b; }",
+                "var sum = 0;",
+                "var text = \"\";",
+                "var i = 0;",
+                "var j = 0;",
+                "while (i < 3000) {",
+                "  sum = add(sum, i);",
+                "  j = j + 1;",
+                "  if (j == 500) { text = add(text, \"x\"); j = 0; }",
+                "  i = i + 1;",
+                "}",
+                "print sum;",
+                "print text;",
+                "print fib(15);");
+        List<Stmt> statements = LoxEngine.frontEnd(ByteBuffer.wrap(
+                source.getBytes(StandardCharsets.UTF_8)),
+                new ErrorReporter(System.err));
+        String expected = lines("4498500", "xxxxxx", "610");
+
+        int threads = 4;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    StringWriter out = new StringWriter();
+                    LoxEngine engine = new LoxEngine(out, System.err, useVm);
+                    start.await();
+                    for (int run = 0; run < SHARED_RUNS; run++) {
+                        out.getBuffer().setLength(0);
+                        LoxEngine.Result result = engine.execute(statements);
+                        if (result != LoxEngine.Result.OK) return result.name();
+                        if (!out.toString().equals(expected)) break;
+                    }
+                    return out.toString();
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Each round defines a fresh global and reads it back, then checks
+    // that the other engine's global of the same round isn't defined here.
+    private static Callable<String> engine(String mine, String theirs,
+                                           boolean useVm,
+                                           CyclicBarrier start) {
+        return () -> {
+            StringWriter out = new StringWriter();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            LoxEngine engine = new LoxEngine(out,
+                    new PrintStream(err, true, StandardCharsets.UTF_8), useVm);
+            start.await();
+
+            for (int i = 0; i < ROUNDS; i++) {
+                String name = mine + i;
+                assertEquals(LoxEngine.Result.OK, engine.eval(
+                        "var " + name + " = " + i + "; print " + name + ";"));
+                assertEquals(LoxEngine.Result.RUNTIME_ERROR,
+                        engine.eval("print " + theirs + i + ";"));
+            }
+
+            String errors = err.toString(StandardCharsets.UTF_8);
+            for (int i = 0; i < ROUNDS; i++) {
+                String undefined = "Undefined variable '" + theirs + i + "'.";
+                if (!errors.contains(undefined)) return "missing: " + undefined;
+            }
+            return out.toString();
+        };
+    }
+
+    private static String expected() {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < ROUNDS; i++) {
+            lines.append(i).append(System.lineSeparator());
+        }
+        return lines.toString();
+    }
+
+    private static String lines(String... values) {
+        StringBuilder lines = new StringBuilder();
+        for (String value : values) {
+            lines.append(value).append(System.lineSeparator());
+        }
+        return lines.toString();
+    }
+}
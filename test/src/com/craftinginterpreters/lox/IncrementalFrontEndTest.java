@@ -0,0 +1,172 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class IncrementalFrontEndTest {
+    private static final int EDITS = 300;
+
+    // Lines the random edits insert, each formatted with two small numbers.
+    // Some don't parse or fail at runtime, and some split or join the
+    // declarations around them.
+    private static final String[] SNIPPETS = {
+            "fun f%d(n) { if (n > 3) { return n * %d; } return g(n + 1); }\n",
+            "var v%d = %d;\n",
+            "print v%d + %d;\n",
+            "// comment %d %d\n",
+            "/* block\n %d %d */\n",
+            "if (true) { print %d; } else { print %d; }\n",
+            "if (v0 > %d) print %d;\n",
+            "else print %d + %d;\n",
+            "fun g(n) { print n + %d; return n; }\n",
+            "print f%d(%d);\n",
+            "print undefinedVar%d + %d;\n",
+            "var s = \"str\n%d %d\";\n",
+            "fun bad() { return 1 / (%d - %d); }\nprint bad();\n",
+            "{ var x = %d; print x - %d; }\n",
+            "print -\"x%d%d\";\n",
+            "var v0 = %d; fun h() { return v%d; }\n",
+            "var i = %d; while (i < 20) { i = i + %d + 1; }\nprint i;\n",
+            "return %d%d;\n",
+            "print (%d;\n",
+    };
+
+    // Replays random edits and checks that after each one the program
+    // reports the same errors and prints the same as a full parse of it.
+    @ParameterizedTest
+    @ValueSource(longs = {1, 2, 3, 4, 5, 6, 7, 8})
+    void matchesFullParseAfterEdits(long seed) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<>();
+        lines.add("var v0 = 1;\n");
+        lines.add("fun g(n) { return n; }\n");
+
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        ErrorReporter reporter = reporter(errors);
+        IncrementalFrontEnd frontEnd = new IncrementalFrontEnd(reporter);
+        for (int edit = 0; edit < EDITS; edit++) {
+            edit(random, lines);
+            String source = String.join("", lines);
+
+            reporter.hadError = false;
+            List<Stmt> incremental = frontEnd.update(
+                    source.getBytes(StandardCharsets.UTF_8));
+            String actual = errors + run(incremental);
+            errors.reset();
+
+            ByteArrayOutputStream fullErrors = new ByteArrayOutputStream();
+            List<Stmt> full = LoxEngine.frontEnd(ByteBuffer.wrap(
+                    source.getBytes(StandardCharsets.UTF_8)),
+                    reporter(fullErrors));
+            String expected = fullErrors + run(full);
+
+            assertEquals(expected, actual,
+                    "after edit " + edit + " of:\n" + source);
+        }
+    }
+
+    // Declarations an edit doesn't touch are the same nodes afterwards,
+    // but nothing a run recorded in them survives.
+    @Test
+    void resetsReusedDeclarations() {
+        IncrementalFrontEnd frontEnd = new IncrementalFrontEnd(
+                reporter(new ByteArrayOutputStream()));
+        String source = "fun add(a, b) { return a + b; }\n" +
+                "var i = 0;\n" +
+                "while (i < 5) { i = add(i, 1); }\n";
+        List<Stmt> first = frontEnd.update(
+                source.getBytes(StandardCharsets.UTF_8));
+        run(first);
+
+        Stmt.Function function = (Stmt.Function)first.get(0);
+        Stmt.While loop = (Stmt.While)first.get(2);
+        JitProfile functionProfile = function.profile;
+        JitProfile loopProfile = loop.profile;
+        Expr.Call call = (Expr.Call)((Expr.Assign)((Stmt.Expression)
+                ((Stmt.Block)loop.body).statements.get(0)).expression).value;
+        Expr.Binary sum = (Expr.Binary)((Stmt.Return)function.body.get(0)).value;
+        assertEquals(Specialization.NUMBER, sum.specialization);
+        assertSame(function, call.cachedTarget);
+
+        List<Stmt> second = frontEnd.update(
+                ("print 0;\n" + source).getBytes(StandardCharsets.UTF_8));
+        assertSame(function, second.get(1));
+        assertSame(loop, second.get(3));
+        assertNotSame(functionProfile, function.profile);
+        assertNotSame(loopProfile, loop.profile);
+        assertEquals(0, function.profile.hotness);
+        assertEquals(Specialization.UNINITIALIZED, sum.specialization);
+        assertEquals(null, call.cachedTarget);
+        assertEquals("0" + System.lineSeparator(), run(second));
+    }
+
+    // The tree doesn't read its lexemes from the source it was parsed
+    // from, which may be long gone by the time an error names one.
+    @Test
+    void tokensDoNotReferToTheSource() {
+        IncrementalFrontEnd frontEnd = new IncrementalFrontEnd(
+                reporter(new ByteArrayOutputStream()));
+        byte[] source = "print 1;\nprint missing - 1;\n"
+                .getBytes(StandardCharsets.UTF_8);
+        List<Stmt> statements = frontEnd.update(source);
+        Arrays.fill(source, (byte)'?');
+
+        Expr.Binary difference =
+                (Expr.Binary)((Stmt.Print)statements.get(1)).expression;
+        assertEquals("-", difference.operator.lexeme());
+        assertEquals("1" + System.lineSeparator() +
+                "Undefined variable 'missing'.\n[line 2]" +
+                System.lineSeparator(), run(statements));
+    }
+
+    private static void edit(Random random, List<String> lines) {
+        String snippet = String.format(
+                SNIPPETS[random.nextInt(SNIPPETS.length)],
+                random.nextInt(5), random.nextInt(5));
+        int edit = random.nextInt(4);
+        if (edit == 0 || lines.size() < 3) {
+            lines.add(random.nextInt(lines.size() + 1), snippet);
+        } else if (edit == 1) {
+            lines.remove(random.nextInt(lines.size()));
+        } else if (edit == 2) {
+            lines.set(random.nextInt(lines.size()), snippet);
+        } else {
+            // Splits a line in two somewhere, even inside a token.
+            int index = random.nextInt(lines.size());
+            String line = lines.get(index);
+            int at = random.nextInt(line.length());
+            lines.set(index, line.substring(0, at) + "\n" + line.substring(at));
+        }
+    }
+
+    // Runs the program on a fresh engine and returns what it printed,
+    // followed by its runtime error if it had one.
+    private static String run(List<Stmt> statements) {
+        if (statements == null) return "";
+
+        StringWriter out = new StringWriter();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        new LoxEngine(out, reporter(err), false).execute(statements);
+        return out + err.toString(StandardCharsets.UTF_8);
+    }
+
+    private static ErrorReporter reporter(ByteArrayOutputStream errors) {
+        return new ErrorReporter(
+                new PrintStream(errors, true, StandardCharsets.UTF_8));
+    }
+}
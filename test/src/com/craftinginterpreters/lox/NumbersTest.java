@@ -0,0 +1,89 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Numbers must look the same as Double.toString() without a trailing
+// ".0", which is how Lox always showed them.
+class NumbersTest {
+    private static final int SAMPLES = 50_000;
+
+    @ParameterizedTest
+    @CsvSource({
+            "0.0, 0",
+            "-0.0, -0",
+            "7.0, 7",
+            "-42.0, -42",
+            "9999999.0, 9999999",
+            "1e7, 1.0E7",
+            "-1e7, -1.0E7",
+            "1.5e7, 1.5E7",
+            "1e21, 1.0E21",
+            "NaN, NaN",
+            "Infinity, Infinity",
+            "-Infinity, -Infinity",
+            "0.5, 0.5",
+            "-2.25, -2.25",
+            "0.1, 0.1",
+            "0.30000000000000004, 0.30000000000000004",
+            "0.3333333333333333, 0.3333333333333333",
+            "14.285714285714286, 14.285714285714286",
+            "9999999.5, 9999999.5",
+            "0.001, 0.001",
+            "0.0012, 0.0012",
+            "9.999e-4, 9.999E-4",
+            "4.9e-324, 4.9E-324",
+    })
+    void formatsLikeTheBaseline(double value, String expected) {
+        assertEquals(expected, baseline(value));
+        assertEquals(expected, Numbers.toString(value));
+        assertEquals(expected + System.lineSeparator(), println(value));
+    }
+
+    // Random bit patterns cover every notation, and short decimals the
+    // digits written directly.
+    @Test
+    void matchesTheBaselineOnRandomNumbers() {
+        Random random = new Random(20);
+        for (int i = 0; i < SAMPLES; i++) {
+            check(Double.longBitsToDouble(random.nextLong()));
+
+            long digits = (long)(random.nextDouble() *
+                    Math.pow(10, 1 + random.nextInt(15)));
+            double decimal = digits / Math.pow(10, random.nextInt(16));
+            check(decimal);
+            check(-decimal);
+            check(Math.nextUp(decimal));
+            check(Math.nextDown(decimal));
+        }
+    }
+
+    private static void check(double value) {
+        String expected = baseline(value);
+        assertEquals(expected, Numbers.toString(value));
+        assertEquals(expected + System.lineSeparator(), println(value));
+    }
+
+    private static String baseline(double value) {
+        String text = Double.toString(value);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+
+    private static String println(double value) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        Numbers.println(writer, value, new char[Numbers.MAX_LENGTH]);
+        writer.flush();
+        return out.toString();
+    }
+}
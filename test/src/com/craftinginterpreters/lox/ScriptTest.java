@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Runs every script in test/scripts on both engines. A script lists the
+// lines it prints in "// expect: " comments. A script that should fail at
+// runtime marks the line the error is reported at with a "// expect
+// runtime error: " comment giving the message; any other must run without
+// errors.
+class ScriptTest {
+    private static final String EXPECT = "// expect: ";
+    private static final String EXPECT_RUNTIME_ERROR =
+            "// expect runtime error: ";
+
+    @TestFactory
+    Stream<DynamicTest> scripts() throws IOException {
+        Path directory = Paths.get(
+                System.getProperty("lox.testScripts", "test/scripts"));
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(directory)) {
+            scripts = files.filter(file -> file.toString().endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Path script : scripts) {
+            String name = script.getFileName().toString();
+            tests.add(DynamicTest.dynamicTest(name + " (tree)",
+                    () -> run(script, false)));
+            tests.add(DynamicTest.dynamicTest(name + " (vm)",
+                    () -> run(script, true)));
+        }
+        return tests.stream();
+    }
+
+    private static void run(Path script, boolean useVm) throws IOException {
+        String source = Files.readString(script, StandardCharsets.UTF_8);
+        StringBuilder expected = new StringBuilder();
+        String expectedError = "";
+        String[] lines = source.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            int expect = line.indexOf(EXPECT);
+            if (expect != -1) {
+                expected.append(line.substring(expect + EXPECT.length()))
+                        .append(System.lineSeparator());
+            }
+
+            int error = line.indexOf(EXPECT_RUNTIME_ERROR);
+            if (error != -1) {
+                expectedError = line.substring(
+                        error + EXPECT_RUNTIME_ERROR.length()) +
+                        "\n[line " + (i + 1) + "]" + System.lineSeparator();
+            }
+        }
+
+        StringWriter out = new StringWriter();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        LoxEngine engine = new LoxEngine(out,
+                new PrintStream(err, true, StandardCharsets.UTF_8), useVm);
+        LoxEngine.Result result = engine.eval(source);
+
+        assertEquals(expectedError, err.toString(StandardCharsets.UTF_8));
+        assertEquals(expectedError.isEmpty()
+                ? LoxEngine.Result.OK
+                : LoxEngine.Result.RUNTIME_ERROR, result);
+        assertEquals(expected.toString(), out.toString());
+    }
+}